@@ -0,0 +1,61 @@
+package lox;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The Lox programs the benchmarks run. All of them are bundled under /corpus, except for
+ * "generated", a large synthetic source file built on the fly so it doesn't have to be checked in.
+ */
+final class Corpus {
+    static final String GENERATED = "generated";
+    /** how many declaration units the generated program is made of (roughly 400 bytes each) **/
+    private static final int GENERATED_UNITS = 1000;
+
+    private Corpus() {}
+
+    static String load(String name) throws IOException {
+        if (name.equals(GENERATED)) {
+            return generate(GENERATED_UNITS);
+        }
+
+        try (InputStream in = Corpus.class.getResourceAsStream("/corpus/" + name + ".lox")) {
+            if (in == null) {
+                throw new IllegalArgumentException("No benchmark program named " + name);
+            }
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Builds a long, deterministic program mixing classes, functions, loops and branches. Each
+     * unit is cheap to run, so the phases before interpretation dominate its cost.
+     **/
+    static String generate(int units) {
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < units; i++) {
+            source.append("// unit ").append(i).append('\n')
+                  .append("class Shape").append(i).append(" {\n")
+                  .append("  init(a, b) { this.a = a; this.b = b; }\n")
+                  .append("  area() { return this.a * this.b + ").append(i).append("; }\n")
+                  .append("  describe() { return \"shape ").append(i).append("\"; }\n")
+                  .append("}\n")
+                  .append("fun compute").append(i).append("(n) {\n")
+                  .append("  var total = 0;\n")
+                  .append("  for (var j = 0; j < n; j = j + 1) {\n")
+                  .append("    if (j == ").append(i % 7).append(" or j > 3) {\n")
+                  .append("      total = total + j;\n")
+                  .append("    } else {\n")
+                  .append("      total = total - 1;\n")
+                  .append("    }\n")
+                  .append("  }\n")
+                  .append("  var shape = Shape").append(i).append("(n, ").append(i).append(");\n")
+                  .append("  return total + shape.area();\n")
+                  .append("}\n")
+                  .append("var result").append(i).append(" = compute").append(i)
+                  .append("(").append(i % 5).append(");\n\n");
+        }
+        return source.toString();
+    }
+}
@@ -0,0 +1,146 @@
+package lox;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times every phase of the tree-walk pipeline on its own, plus the whole run, over the programs
+ * in the {@link Corpus}. Each phase gets the output of the previous ones prepared in advance.
+ *
+ * Build with mvn package and run with java -jar benchmarks/target/benchmarks.jar, optionally
+ * followed by a filter such as PhaseBenchmark.interpret -p program=fib.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PhaseBenchmark {
+    @Param({"fib", "binary_trees", "method_call", "string_equality", "zoo", "instantiation",
+            Corpus.GENERATED})
+    public String program;
+
+    private String source;
+    private List<Token> tokens;
+    // the programs print their results, which would only measure the terminal
+    private final Lox lox = new Lox(new PrintStream(OutputStream.nullOutputStream()), System.err);
+
+    @Setup(Level.Trial)
+    public void load() throws IOException {
+        source = Corpus.load(program);
+        tokens = new Scanner(source, lox).scanTokens();
+        List<Stmt> statements = prepareTree(lox, tokens);
+
+        // make sure the program runs cleanly before timing it
+        new Interpreter(lox).interpret(statements);
+        if (lox.hadRuntimeError) {
+            throw new IllegalStateException(program + " failed at runtime");
+        }
+    }
+
+    /** A freshly prepared tree, so every interpretation starts from cold nodes **/
+    @State(Scope.Thread)
+    public static class FreshTree {
+        List<Stmt> statements;
+
+        @Setup(Level.Invocation)
+        public void prepare(PhaseBenchmark benchmark) {
+            statements = prepareTree(benchmark.lox, new Scanner(benchmark.source, benchmark.lox).scanTokens());
+        }
+    }
+
+    /** A freshly parsed tree, since resolving merges blocks and has to see them as parsed **/
+    @State(Scope.Thread)
+    public static class ParsedTree {
+        List<Stmt> statements;
+
+        @Setup(Level.Invocation)
+        public void prepare(PhaseBenchmark benchmark) {
+            statements = parseTree(benchmark.lox, benchmark.tokens);
+        }
+    }
+
+    /** A freshly resolved tree that the optimizer has not been over yet **/
+    @State(Scope.Thread)
+    public static class ResolvedTree {
+        List<Stmt> statements;
+
+        @Setup(Level.Invocation)
+        public void prepare(PhaseBenchmark benchmark) {
+            statements = resolveTree(benchmark.lox, parseTree(benchmark.lox, benchmark.tokens));
+        }
+    }
+
+    @Benchmark
+    public Object scan() {
+        return new Scanner(source, lox).scanTokens();
+    }
+
+    @Benchmark
+    public Object parse() {
+        return new Parser(tokens, lox).parse();
+    }
+
+    @Benchmark
+    public Object resolve(ParsedTree tree) {
+        new Resolver(lox).resolve(tree.statements);
+        return tree.statements;
+    }
+
+    @Benchmark
+    public Object optimize(ResolvedTree tree) {
+        return new Optimizer().optimize(tree.statements);
+    }
+
+    @Benchmark
+    public void interpret(FreshTree tree) {
+        new Interpreter(lox).interpret(tree.statements);
+    }
+
+    @Benchmark
+    public void run() {
+        List<Stmt> program = prepareTree(lox, new Scanner(source, lox).scanTokens());
+        new Interpreter(lox).interpret(program);
+    }
+
+    /**
+     * Parses, resolves and optimizes like {@link Lox} does, failing loudly on errors rather than
+     * timing a broken program
+     **/
+    private static List<Stmt> prepareTree(Lox lox, List<Token> tokens) {
+        return new Optimizer().optimize(resolveTree(lox, parseTree(lox, tokens)));
+    }
+
+    private static List<Stmt> parseTree(Lox lox, List<Token> tokens) {
+        List<Stmt> statements = new Parser(tokens, lox).parse();
+        if (lox.hadError || statements == null) {
+            throw new IllegalStateException("benchmark program has errors");
+        }
+        return statements;
+    }
+
+    private static List<Stmt> resolveTree(Lox lox, List<Stmt> statements) {
+        new Resolver(lox).resolve(statements);
+        if (lox.hadError) {
+            throw new IllegalStateException("benchmark program has errors");
+        }
+        return statements;
+    }
+}
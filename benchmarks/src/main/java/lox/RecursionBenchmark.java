@@ -0,0 +1,56 @@
+package lox;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Interprets the call- and return-heavy programs of the {@link Corpus}, to compare ways of
+ * unwinding 'return' and calling functions. Run old and new builds with the same settings, e.g.
+ * java -jar benchmarks/target/benchmarks.jar RecursionBenchmark. The tree is resolved once and
+ * reused, since only the run-time cost of calls and returns is of interest here.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecursionBenchmark {
+    @Param({"fib", "recursion"})
+    public String program;
+
+    private List<Stmt> statements;
+    // the programs print their results, which would only measure the terminal
+    private final Lox lox = new Lox(new PrintStream(OutputStream.nullOutputStream()), System.err);
+
+    @Setup(Level.Trial)
+    public void load() throws IOException {
+        List<Token> tokens = new Scanner(Corpus.load(program), lox).scanTokens();
+        statements = new Parser(tokens, lox).parse();
+        new Resolver(lox).resolve(statements);
+        if (lox.hadError) {
+            throw new IllegalStateException(program + " has errors");
+        }
+    }
+
+    @Benchmark
+    public void interpret() {
+        new Interpreter(lox).interpret(statements);
+    }
+}
@@ -1,10 +1,94 @@
 package lox;
 
-public class ASTPrinter implements Expr.Visitor<String> {
+import java.util.List;
+
+/**
+ * Prints trees as s-expressions, one statement per line with the statements nested inside
+ * functions, classes, blocks and control flow indented. Used by --print-ast to show the tree
+ * that actually runs, i.e. after the {@link Optimizer}.
+ */
+public class ASTPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
+    private int indent = 0;
+
     String print(Expr expr) {
         return expr.accept(this);
     }
 
+    String print(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    String print(List<Stmt> statements) {
+        StringBuilder builder = new StringBuilder();
+        for (Stmt stmt : statements) {
+            builder.append(print(stmt)).append("\n");
+        }
+        return builder.toString();
+    }
+
+    // ------------- START STATEMENT PRINTERS ------------- //
+    @Override
+    public String visitExpressionStmt(Stmt.Expression expressionStmt) {
+        return parenthesize(";", expressionStmt.expression);
+    }
+
+    @Override
+    public String visitPrintStmt(Stmt.Print printStmt) {
+        return parenthesize("print", printStmt.expression);
+    }
+
+    @Override
+    public String visitReturnStmt(Stmt.Return returnStmt) {
+        if (returnStmt.value == null) return "(return)";
+        // tail calls run on the trampoline, see Interpreter#tailCall
+        return parenthesize(returnStmt.tailCall ? "return-tail" : "return", returnStmt.value);
+    }
+
+    @Override
+    public String visitVarStmt(Stmt.Var varStmt) {
+        if (varStmt.initializer == null) return "(var " + varStmt.name.lexeme + ")";
+        return parenthesize("var " + varStmt.name.lexeme, varStmt.initializer);
+    }
+
+    @Override
+    public String visitFunctionStmt(Stmt.Function functionStmt) {
+        StringBuilder header = new StringBuilder("fun " + functionStmt.name.lexeme + " (");
+        for (int i = 0; i < functionStmt.params.size(); i++) {
+            if (i > 0) header.append(" ");
+            header.append(functionStmt.params.get(i).lexeme);
+        }
+        header.append(")");
+        return nest(header.toString(), functionStmt.body);
+    }
+
+    @Override
+    public String visitClassStmt(Stmt.Class classStmt) {
+        String header = "class " + classStmt.name.lexeme;
+        if (classStmt.superclass != null) {
+            header += " < " + classStmt.superclass.name.lexeme;
+        }
+        return nest(header, classStmt.methods);
+    }
+
+    @Override
+    public String visitBlockStmt(Stmt.Block blockStmt) {
+        return nest("block", blockStmt.statements);
+    }
+
+    @Override
+    public String visitIfStmt(Stmt.If ifStmt) {
+        String header = "if " + print(ifStmt.condition);
+        if (ifStmt.elseBranch == null) return nest(header, List.of(ifStmt.thenBranch));
+        return nest(header, List.of(ifStmt.thenBranch, ifStmt.elseBranch));
+    }
+
+    @Override
+    public String visitWhileStmt(Stmt.While whileStmt) {
+        return nest("while " + print(whileStmt.condition), List.of(whileStmt.body));
+    }
+    // ------------- END STATEMENT PRINTERS ------------- //
+
+    // ------------- START EXPRESSION PRINTERS ------------- //
     @Override
     public String visitBinaryExpr(Expr.Binary binary) {
         return parenthesize(binary.operator.lexeme, binary.left, binary.right);
@@ -12,32 +96,32 @@ public class ASTPrinter implements Expr.Visitor<String> {
 
     @Override
     public String visitCallExpr(Expr.Call call) {
-        // placeholder so that class can compile
-        return null;
+        Expr[] parts = new Expr[call.arguments.size() + 1];
+        parts[0] = call.callee;
+        for (int i = 0; i < call.arguments.size(); i++) {
+            parts[i + 1] = call.arguments.get(i);
+        }
+        return parenthesize("call", parts);
     }
 
     @Override
     public String visitGetExpr(Expr.Get Get) {
-        // placeholder so that class can compile
-        return null;
+        return parenthesize(". " + Get.name.lexeme, Get.object);
     }
 
     @Override
     public String visitSetExpr(Expr.Set Set) {
-        // placeholder so that class can compile
-        return null;
+        return parenthesize("= ." + Set.name.lexeme, Set.object, Set.value);
     }
 
     @Override
     public String visitSuperExpr(Expr.Super Super) {
-        // placeholder so that class can compile
-        return null;
+        return "(super " + Super.method.lexeme + ")";
     }
 
     @Override
     public String visitThisExpr(Expr.This This) {
-        // placeholder so that class can compile
-        return null;
+        return "this";
     }
 
     @Override
@@ -47,7 +131,9 @@ public class ASTPrinter implements Expr.Visitor<String> {
 
     @Override
     public String visitLiteralExpr(Expr.Literal literal) {
-        if (literal == null) return "nil";
+        if (literal.value == null) return "nil";
+        // quoted, to tell string literals from variables
+        if (literal.value instanceof String) return "\"" + literal.value + "\"";
         return literal.value.toString();
     }
 
@@ -58,21 +144,19 @@ public class ASTPrinter implements Expr.Visitor<String> {
 
     @Override
     public String visitVariableExpr(Expr.Variable variable) {
-        // placeholder so that class can compile
-        return null;
+        return variable.name.lexeme;
     }
 
     @Override
     public String visitAssignExpr(Expr.Assign assign) {
-        // placeholder so that class can compile
-        return null;
+        return parenthesize("= " + assign.name.lexeme, assign.value);
     }
 
     @Override
     public String visitLogicalExpr(Expr.Logical logical) {
-        // placeholder so that class can compile
-        return null;
+        return parenthesize(logical.operator.lexeme, logical.left, logical.right);
     }
+    // ------------- END EXPRESSION PRINTERS ------------- //
 
     private String parenthesize(String name, Expr... expressions) {
         StringBuilder builder = new StringBuilder();
@@ -87,4 +171,19 @@ public class ASTPrinter implements Expr.Visitor<String> {
 
         return builder.toString();
     }
+
+    /** Prints a statement containing others, each on its own line and indented one level further **/
+    private String nest(String header, List<? extends Stmt> statements) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("(").append(header);
+
+        indent++;
+        for (Stmt stmt : statements) {
+            builder.append("\n").append("  ".repeat(indent)).append(print(stmt));
+        }
+        indent--;
+        builder.append(")");
+
+        return builder.toString();
+    }
 }
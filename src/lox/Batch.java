@@ -0,0 +1,155 @@
+package lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Runs every script under a directory in one JVM, with --batch. The scripts run concurrently on a
+ * fork-join pool, each on its own {@link Lox} with its own interpreter, so they share nothing but
+ * the JVM and its warmed up code.
+ *
+ * Each script's output is held back until it is done and then printed whole, in the order of the
+ * script paths, so stdout reads the same as running the scripts one after the other. The header
+ * naming each script goes to stderr, as does the report of every script's outcome and run time
+ * that follows.
+ */
+class Batch {
+    // EX_IOERR, for scripts that could not be read
+    private static final int IO_ERROR = 74;
+
+    // the command line options every script runs with
+    private final List<String> options;
+
+    Batch(List<String> options) {
+        this.options = options;
+    }
+
+    /** The outcome of one script, along with everything it printed **/
+    private static class Result {
+        final Path script;
+        final int status;
+        final long nanos;
+        final ByteArrayOutputStream out;
+        final ByteArrayOutputStream err;
+
+        Result(Path script, int status, long nanos, ByteArrayOutputStream out, ByteArrayOutputStream err) {
+            this.script = script;
+            this.status = status;
+            this.nanos = nanos;
+            this.out = out;
+            this.err = err;
+        }
+    }
+
+    /**
+     * Runs all .lox files under the directory.
+     *
+     * @return The worst exit status of all scripts, which is 0 if they all succeeded.
+     */
+    int run(Path directory) throws IOException {
+        List<Path> scripts;
+        try (Stream<Path> files = Files.walk(directory)) {
+            scripts = files.filter(path -> path.toString().endsWith(".lox") && Files.isRegularFile(path))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+
+        ExecutorService pool = Executors.newWorkStealingPool();
+        long start = System.nanoTime();
+        List<Future<Result>> futures = new ArrayList<>();
+        for (Path script : scripts) {
+            futures.add(pool.submit(() -> runScript(script)));
+        }
+
+        List<Result> results = new ArrayList<>();
+        for (int i = 0; i < scripts.size(); i++) {
+            Result result = join(scripts.get(i), futures.get(i));
+            results.add(result);
+
+            // on stderr, so that stdout is exactly what running the scripts one by one prints
+            System.err.println("==> " + result.script + " <==");
+            System.err.flush();
+            result.out.writeTo(System.out);
+            System.out.flush();
+            result.err.writeTo(System.err);
+            System.err.flush();
+        }
+        long elapsed = System.nanoTime() - start;
+        pool.shutdown();
+
+        return report(results, elapsed);
+    }
+
+    /** Runs one script on a run of its own, catching its output **/
+    private Result runScript(Path script) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        Lox lox = new Lox(new PrintStream(out, true), new PrintStream(err, true));
+        for (String option : options) {
+            lox.option(option);
+        }
+
+        long start = System.nanoTime();
+        int status;
+        try {
+            status = lox.runFile(script);
+        } catch (IOException e) {
+            lox.err.println("Could not read " + script + ": " + e.getMessage());
+            status = IO_ERROR;
+        }
+        return new Result(script, status, System.nanoTime() - start, out, err);
+    }
+
+    /** Waits for a script, turning a crash of the interpreter into a failed result of its own **/
+    private static Result join(Path script, Future<Result> future) {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            ByteArrayOutputStream err = new ByteArrayOutputStream();
+            e.getCause().printStackTrace(new PrintStream(err, true));
+            return new Result(script, 70, 0, new ByteArrayOutputStream(), err);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while running " + script, e);
+        }
+    }
+
+    private static int report(List<Result> results, long elapsed) {
+        int status = 0;
+        long total = 0;
+        for (Result result : results) {
+            status = Math.max(status, result.status);
+            total += result.nanos;
+            System.err.printf("%-14s %8d ms  %s%n", describe(result.status),
+                    TimeUnit.NANOSECONDS.toMillis(result.nanos), result.script);
+        }
+
+        long failed = results.stream().filter(result -> result.status != 0).count();
+        System.err.printf("%d scripts, %d failed, in %d ms (%d ms of script time on %d threads), exit status %d%n",
+                results.size(), failed, TimeUnit.NANOSECONDS.toMillis(elapsed), TimeUnit.NANOSECONDS.toMillis(total),
+                Runtime.getRuntime().availableProcessors(), status);
+        return status;
+    }
+
+    private static String describe(int status) {
+        switch (status) {
+            case 0: return "ok";
+            case 65: return "compile error";
+            case 70: return "runtime error";
+            case IO_ERROR: return "io error";
+            default: return "exit " + status;
+        }
+    }
+}
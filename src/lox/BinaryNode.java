@@ -0,0 +1,148 @@
+package lox;
+
+/**
+ * The operation behind an {@link Expr.Binary} when the interpreter runs with --specialize.
+ *
+ * Every binary expression starts out {@link #UNINITIALIZED}. The first time it runs, it looks at
+ * the operand types and rewrites itself into a node specialized for them, e.g. one that only adds
+ * two doubles. A specialized node checks that its guess still holds and, the first time it does
+ * not, rewrites itself to the {@link #GENERIC} node for good, so a node changes at most twice.
+ */
+abstract class BinaryNode {
+    abstract Object execute(Interpreter interpreter, Expr.Binary binary);
+
+    // ------------- START UNSPECIALIZED NODES ------------- //
+    static final BinaryNode UNINITIALIZED = new BinaryNode() {
+        @Override
+        Object execute(Interpreter interpreter, Expr.Binary binary) {
+            Object left = interpreter.evaluate(binary.left);
+            Object right = interpreter.evaluate(binary.right);
+
+            binary.node = specialize(binary.operator, left, right);
+            return Interpreter.binaryOperation(binary.operator, left, right);
+        }
+    };
+
+    static final BinaryNode GENERIC = new BinaryNode() {
+        @Override
+        Object execute(Interpreter interpreter, Expr.Binary binary) {
+            Object left = interpreter.evaluate(binary.left);
+            Object right = interpreter.evaluate(binary.right);
+            return Interpreter.binaryOperation(binary.operator, left, right);
+        }
+    };
+
+    /** Picks the node for the operand types a binary expression has just seen **/
+    private static BinaryNode specialize(Token operator, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) {
+            switch (operator.type) {
+            case PLUS: return DOUBLE_ADD;
+            case MINUS: return DOUBLE_SUBTRACT;
+            case STAR: return DOUBLE_MULTIPLY;
+            case SLASH: return DOUBLE_DIVIDE;
+            case GREATER: return DOUBLE_GREATER;
+            case GREATER_EQUAL: return DOUBLE_GREATER_EQUAL;
+            case LESS: return DOUBLE_LESS;
+            case LESS_EQUAL: return DOUBLE_LESS_EQUAL;
+            default: return GENERIC;
+            }
+        }
+        if (Rope.isString(left) && Rope.isString(right) && operator.type == TokenType.PLUS) {
+            return STRING_CONCAT;
+        }
+        return GENERIC;
+    }
+    // ------------- END UNSPECIALIZED NODES ------------- //
+
+    // ------------- START SPECIALIZED NODES ------------- //
+    /** A node that only handles two number operands **/
+    private abstract static class DoubleNode extends BinaryNode {
+        @Override
+        final Object execute(Interpreter interpreter, Expr.Binary binary) {
+            Object left = interpreter.evaluate(binary.left);
+            Object right = interpreter.evaluate(binary.right);
+
+            if (left instanceof Double && right instanceof Double) {
+                return apply((double) left, (double) right);
+            }
+
+            // the operands changed type, so stop guessing
+            binary.node = GENERIC;
+            return Interpreter.binaryOperation(binary.operator, left, right);
+        }
+
+        abstract Object apply(double left, double right);
+    }
+
+    static final BinaryNode DOUBLE_ADD = new DoubleNode() {
+        @Override
+        Object apply(double left, double right) {
+            return DoubleCache.valueOf(left + right);
+        }
+    };
+
+    static final BinaryNode DOUBLE_SUBTRACT = new DoubleNode() {
+        @Override
+        Object apply(double left, double right) {
+            return DoubleCache.valueOf(left - right);
+        }
+    };
+
+    static final BinaryNode DOUBLE_MULTIPLY = new DoubleNode() {
+        @Override
+        Object apply(double left, double right) {
+            return DoubleCache.valueOf(left * right);
+        }
+    };
+
+    static final BinaryNode DOUBLE_DIVIDE = new DoubleNode() {
+        @Override
+        Object apply(double left, double right) {
+            return DoubleCache.valueOf(left / right);
+        }
+    };
+
+    static final BinaryNode DOUBLE_GREATER = new DoubleNode() {
+        @Override
+        Object apply(double left, double right) {
+            return left > right;
+        }
+    };
+
+    static final BinaryNode DOUBLE_GREATER_EQUAL = new DoubleNode() {
+        @Override
+        Object apply(double left, double right) {
+            return left >= right;
+        }
+    };
+
+    static final BinaryNode DOUBLE_LESS = new DoubleNode() {
+        @Override
+        Object apply(double left, double right) {
+            return left < right;
+        }
+    };
+
+    static final BinaryNode DOUBLE_LESS_EQUAL = new DoubleNode() {
+        @Override
+        Object apply(double left, double right) {
+            return left <= right;
+        }
+    };
+
+    static final BinaryNode STRING_CONCAT = new BinaryNode() {
+        @Override
+        Object execute(Interpreter interpreter, Expr.Binary binary) {
+            Object left = interpreter.evaluate(binary.left);
+            Object right = interpreter.evaluate(binary.right);
+
+            if (Rope.isString(left) && Rope.isString(right)) {
+                return Rope.concat(left, right);
+            }
+
+            binary.node = GENERIC;
+            return Interpreter.binaryOperation(binary.operator, left, right);
+        }
+    };
+    // ------------- END SPECIALIZED NODES ------------- //
+}
@@ -0,0 +1,48 @@
+package lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** A compiled sequence of bytecode, along with its constant pool and line table **/
+class Chunk {
+    byte[] code = new byte[16];
+    // source line of every byte in code, for runtime error reporting
+    int[] lines = new int[16];
+    int count = 0;
+    Object[] constants;
+
+    private final List<Object> constantList = new ArrayList<>();
+    private final Map<Object, Integer> constantIndices = new HashMap<>();
+
+    void write(int b, int line) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+            lines = Arrays.copyOf(lines, count * 2);
+        }
+        code[count] = (byte) b;
+        lines[count] = line;
+        count++;
+    }
+
+    /** Returns the index of the value in the constant pool, adding it if it is not there yet **/
+    int addConstant(Object value) {
+        // functions are never shared, so only strings and numbers are de-duplicated
+        if (value instanceof String || value instanceof Double) {
+            Integer index = constantIndices.get(value);
+            if (index != null) return index;
+            constantIndices.put(value, constantList.size());
+        }
+        constantList.add(value);
+        return constantList.size() - 1;
+    }
+
+    /** Freezes the chunk once compilation is done **/
+    void finish() {
+        code = Arrays.copyOf(code, count);
+        lines = Arrays.copyOf(lines, count);
+        constants = constantList.toArray();
+    }
+}
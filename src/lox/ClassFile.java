@@ -0,0 +1,279 @@
+package lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Just enough of a JVM class file assembler for the {@link Jit}.
+ *
+ * Classes are written as version 49 (Java 5) class files, which are still verified by type
+ * inference, so no stack map frames have to be computed for the generated branches.
+ */
+class ClassFile {
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    private static final int VERSION = 49;
+
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private final Map<String, Integer> poolIndices = new HashMap<>();
+    private int poolCount = 1;
+
+    private final int thisClass;
+    private final int superClass;
+    private final int[] interfaces;
+    private final List<byte[]> fields = new ArrayList<>();
+    private final List<byte[]> methods = new ArrayList<>();
+
+    ClassFile(String name, String superName, String... interfaceNames) {
+        thisClass = classRef(name);
+        superClass = classRef(superName);
+        interfaces = new int[interfaceNames.length];
+        for (int i = 0; i < interfaceNames.length; i++) {
+            interfaces[i] = classRef(interfaceNames[i]);
+        }
+    }
+
+    // ------------- START CONSTANT POOL ------------- //
+    int utf8(String value) {
+        return constant("U" + value, out -> {
+            out.writeByte(1);
+            out.writeUTF(value);
+        });
+    }
+
+    int classRef(String name) {
+        int nameIndex = utf8(name);
+        return constant("C" + name, out -> {
+            out.writeByte(7);
+            out.writeShort(nameIndex);
+        });
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        return memberRef(9, owner, name, descriptor);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return memberRef(10, owner, name, descriptor);
+    }
+
+    private int memberRef(int tag, String owner, String name, String descriptor) {
+        int ownerIndex = classRef(owner);
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        int nameAndType = constant("N" + name + ":" + descriptor, out -> {
+            out.writeByte(12);
+            out.writeShort(nameIndex);
+            out.writeShort(descriptorIndex);
+        });
+        return constant(tag + owner + "." + name + ":" + descriptor, out -> {
+            out.writeByte(tag);
+            out.writeShort(ownerIndex);
+            out.writeShort(nameAndType);
+        });
+    }
+
+    private interface PoolEntry {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private int constant(String key, PoolEntry entry) {
+        Integer index = poolIndices.get(key);
+        if (index != null) return index;
+
+        try {
+            entry.write(poolOut);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        poolIndices.put(key, poolCount);
+        return poolCount++;
+    }
+    // ------------- END CONSTANT POOL ------------- //
+
+    void addField(int access, String name, String descriptor) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        fields.add(bytes.toByteArray());
+    }
+
+    void addMethod(int access, String name, String descriptor, Code code) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(descriptor));
+            // a single Code attribute, without exception table or nested attributes
+            out.writeShort(1);
+            out.writeShort(utf8("Code"));
+            out.writeInt(12 + code.length);
+            out.writeShort(code.maxStack);
+            out.writeShort(code.maxLocals);
+            out.writeInt(code.length);
+            out.write(code.bytes, 0, code.length);
+            out.writeShort(0);
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        methods.add(bytes.toByteArray());
+    }
+
+    byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(VERSION);
+            out.writeShort(poolCount);
+            out.write(pool.toByteArray());
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(interfaces.length);
+            for (int i : interfaces) {
+                out.writeShort(i);
+            }
+            out.writeShort(fields.size());
+            for (byte[] field : fields) {
+                out.write(field);
+            }
+            out.writeShort(methods.size());
+            for (byte[] method : methods) {
+                out.write(method);
+            }
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /** The bytecode of one method, with forward jumps patched through labels **/
+    static class Code {
+        // opcodes used by the jit
+        static final int ACONST_NULL = 0x01;
+        static final int SIPUSH = 0x11;
+        static final int ALOAD = 0x19;
+        static final int AALOAD = 0x32;
+        static final int ASTORE = 0x3a;
+        static final int AASTORE = 0x53;
+        static final int POP = 0x57;
+        static final int DUP = 0x59;
+        static final int DUP_X2 = 0x5b;
+        static final int IFEQ = 0x99;
+        static final int IFNE = 0x9a;
+        static final int GOTO = 0xa7;
+        static final int ARETURN = 0xb0;
+        static final int RETURN = 0xb1;
+        static final int GETSTATIC = 0xb2;
+        static final int GETFIELD = 0xb4;
+        static final int PUTFIELD = 0xb5;
+        static final int INVOKEVIRTUAL = 0xb6;
+        static final int INVOKESPECIAL = 0xb7;
+        static final int INVOKESTATIC = 0xb8;
+        static final int ANEWARRAY = 0xbd;
+        static final int CHECKCAST = 0xc0;
+
+        /** Largest method the JVM accepts **/
+        static final int MAX_LENGTH = 65535;
+
+        byte[] bytes = new byte[256];
+        int length = 0;
+        int maxStack = 0;
+        int maxLocals = 0;
+        private int stack = 0;
+
+        /** Emits an instruction that changes the operand stack depth by stackEffect **/
+        void op(int opcode, int stackEffect) {
+            u1(opcode);
+            adjustStack(stackEffect);
+        }
+
+        void op(int opcode, int operand, int stackEffect) {
+            u1(opcode);
+            if (opcode == ALOAD || opcode == ASTORE) {
+                if (operand > 255) {
+                    throw new Jit.Bailout("too many locals");
+                }
+                u1(operand);
+                maxLocals = Math.max(maxLocals, operand + 1);
+            } else {
+                u2(operand);
+            }
+            adjustStack(stackEffect);
+        }
+
+        void pushInt(int value) {
+            if (value > Short.MAX_VALUE) {
+                throw new Jit.Bailout("constant out of range");
+            }
+            op(SIPUSH, value, 1);
+        }
+
+        void adjustStack(int effect) {
+            stack += effect;
+            maxStack = Math.max(maxStack, stack);
+        }
+
+        /** Emits a jump with a placeholder offset, returning the label to bind it later **/
+        int jump(int opcode, int stackEffect) {
+            int label = length;
+            op(opcode, 0, stackEffect);
+            return label;
+        }
+
+        /** Points the jump emitted at label to the current position **/
+        void bind(int label) {
+            patch(label, length - label);
+        }
+
+        void jumpBack(int opcode, int target, int stackEffect) {
+            int label = length;
+            op(opcode, 0, stackEffect);
+            patch(label, target - label);
+        }
+
+        private void patch(int label, int offset) {
+            if (offset > Short.MAX_VALUE || offset < Short.MIN_VALUE) {
+                throw new Jit.Bailout("jump out of range");
+            }
+            bytes[label + 1] = (byte) (offset >> 8);
+            bytes[label + 2] = (byte) offset;
+        }
+
+        private void u1(int b) {
+            if (length == bytes.length) {
+                bytes = Arrays.copyOf(bytes, length * 2);
+            }
+            bytes[length++] = (byte) b;
+            if (length > MAX_LENGTH) {
+                throw new Jit.Bailout("method too large");
+            }
+        }
+
+        private void u2(int s) {
+            u1(s >> 8);
+            u1(s);
+        }
+    }
+}
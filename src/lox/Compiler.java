@@ -0,0 +1,631 @@
+package lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compiles resolved statements into bytecode for the {@link VM}.
+ *
+ * Locals live in stack slots and variables captured by closures are reached through upvalues.
+ * The compiler relies on the resolver having already reported static errors, and on it having
+ * marked which variables are globals.
+ */
+public class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private static final int MAX_LOCALS = 256;
+    private static final int MAX_UPVALUES = 256;
+    private static final int MAX_CONSTANTS = 65536;
+    private static final int MAX_JUMP = 65535;
+
+    private enum FunctionType {
+        SCRIPT,
+        FUNCTION,
+        METHOD,
+        INITIALIZER
+    }
+
+    private static class Local {
+        final String name;
+        final int depth;
+        boolean isCaptured = false;
+
+        Local(String name, int depth) {
+            this.name = name;
+            this.depth = depth;
+        }
+    }
+
+    private static class Upvalue {
+        final int index;
+        final boolean isLocal;
+
+        Upvalue(int index, boolean isLocal) {
+            this.index = index;
+            this.isLocal = isLocal;
+        }
+    }
+
+    /** Compilation state of a single function, chained to the function it is nested in **/
+    private static class FunctionState {
+        final FunctionState enclosing;
+        final VM.Function function;
+        final FunctionType type;
+        final List<Local> locals = new ArrayList<>();
+        final List<Upvalue> upvalues = new ArrayList<>();
+        int scopeDepth = 0;
+        // number of values on the stack at the current point of the code, to size the frame
+        int stackDepth = 0;
+
+        FunctionState(FunctionState enclosing, VM.Function function, FunctionType type) {
+            this.enclosing = enclosing;
+            this.function = function;
+            this.type = type;
+        }
+    }
+
+    private static class ClassState {
+        final ClassState enclosing;
+        boolean hasSuperclass = false;
+
+        ClassState(ClassState enclosing) {
+            this.enclosing = enclosing;
+        }
+    }
+
+    // the run that compile errors are reported to
+    private final Lox lox;
+    private FunctionState current = null;
+    private ClassState currentClass = null;
+    // source line attached to the instructions being emitted
+    private int line = 0;
+
+    Compiler(Lox lox) {
+        this.lox = lox;
+    }
+
+    VM.Function compile(List<Stmt> statements) {
+        beginFunction(new VM.Function("script", 0), FunctionType.SCRIPT);
+        for (Stmt stmt : statements) {
+            compile(stmt);
+        }
+        emitReturn();
+        return endFunction();
+    }
+
+    // ------------- START COMPILATION HELPERS ------------- //
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    private void beginFunction(VM.Function function, FunctionType type) {
+        current = new FunctionState(current, function, type);
+        // slot 0 holds the receiver in methods and the called function otherwise
+        String slotZero = type == FunctionType.METHOD || type == FunctionType.INITIALIZER
+                    ? "this"
+                    : "";
+        current.locals.add(new Local(slotZero, 0));
+        current.stackDepth = 1;
+        current.function.maxStack = 1;
+    }
+
+    private VM.Function endFunction() {
+        VM.Function function = current.function;
+        function.upvalueCount = current.upvalues.size();
+        function.chunk.finish();
+        current = current.enclosing;
+        return function;
+    }
+
+    private void function(Stmt.Function declaration, FunctionType type) {
+        VM.Function function = new VM.Function(declaration.name.lexeme, declaration.params.size());
+        beginFunction(function, type);
+        beginScope();
+
+        for (Token param : declaration.params) {
+            addLocal(param);
+            adjustStack(1);
+        }
+        for (Stmt stmt : declaration.body) {
+            compile(stmt);
+        }
+        emitReturn();
+
+        // no need to end the scope, returning discards the whole frame
+        FunctionState state = current;
+        endFunction();
+
+        emitOp(OpCode.CLOSURE);
+        emitShort(makeConstant(function));
+        for (Upvalue upvalue : state.upvalues) {
+            emitByte(upvalue.isLocal ? 1 : 0);
+            emitByte(upvalue.index);
+        }
+    }
+    // ------------- END COMPILATION HELPERS ------------- //
+
+    // ------------- START SCOPING HELPERS ------------- //
+    private void beginScope() {
+        current.scopeDepth++;
+    }
+
+    private void endScope() {
+        current.scopeDepth--;
+
+        List<Local> locals = current.locals;
+        while (!locals.isEmpty() && locals.get(locals.size() - 1).depth > current.scopeDepth) {
+            // captured variables are hoisted onto the heap before their slot goes away
+            emitOp(locals.get(locals.size() - 1).isCaptured ? OpCode.CLOSE_UPVALUE : OpCode.POP);
+            locals.remove(locals.size() - 1);
+        }
+    }
+
+    private void addLocal(Token name) {
+        if (current.locals.size() == MAX_LOCALS) {
+            lox.error(name, "Too many local variables in function.");
+            return;
+        }
+        current.locals.add(new Local(name.lexeme, current.scopeDepth));
+    }
+
+    /** Locals are declared by leaving their value on the stack, globals need an instruction **/
+    private void defineVariable(Token name) {
+        if (current.scopeDepth > 0) {
+            addLocal(name);
+            return;
+        }
+
+        line = name.line;
+        emitOp(OpCode.DEFINE_GLOBAL);
+        emitShort(makeConstant(name.lexeme));
+    }
+
+    private int resolveLocal(FunctionState state, String name) {
+        for (int i = state.locals.size() - 1; i >= 0; i--) {
+            if (state.locals.get(i).name.equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int resolveUpvalue(FunctionState state, Token name) {
+        if (state.enclosing == null) return -1;
+
+        int local = resolveLocal(state.enclosing, name.lexeme);
+        if (local != -1) {
+            state.enclosing.locals.get(local).isCaptured = true;
+            return addUpvalue(state, local, true, name);
+        }
+
+        int upvalue = resolveUpvalue(state.enclosing, name);
+        if (upvalue != -1) {
+            return addUpvalue(state, upvalue, false, name);
+        }
+
+        return -1;
+    }
+
+    private int addUpvalue(FunctionState state, int index, boolean isLocal, Token name) {
+        for (int i = 0; i < state.upvalues.size(); i++) {
+            Upvalue upvalue = state.upvalues.get(i);
+            if (upvalue.index == index && upvalue.isLocal == isLocal) {
+                return i;
+            }
+        }
+
+        if (state.upvalues.size() == MAX_UPVALUES) {
+            lox.error(name, "Too many closure variables in function.");
+            return 0;
+        }
+        state.upvalues.add(new Upvalue(index, isLocal));
+        return state.upvalues.size() - 1;
+    }
+
+    /**
+     * Emits a read or write of a variable.
+     *
+     * @param isGlobal Whether the resolver left the variable unresolved.
+     */
+    private void namedVariable(Token name, boolean isGlobal, boolean isAssignment) {
+        line = name.line;
+        int local = isGlobal ? -1 : resolveLocal(current, name.lexeme);
+        if (local != -1) {
+            emitOp(isAssignment ? OpCode.SET_LOCAL : OpCode.GET_LOCAL);
+            emitByte(local);
+            return;
+        }
+
+        int upvalue = isGlobal ? -1 : resolveUpvalue(current, name);
+        if (upvalue != -1) {
+            emitOp(isAssignment ? OpCode.SET_UPVALUE : OpCode.GET_UPVALUE);
+            emitByte(upvalue);
+            return;
+        }
+
+        emitOp(isAssignment ? OpCode.SET_GLOBAL : OpCode.GET_GLOBAL);
+        emitShort(makeConstant(name.lexeme));
+    }
+    // ------------- END SCOPING HELPERS ------------- //
+
+    // ------------- START EMIT HELPERS ------------- //
+    private Chunk chunk() {
+        return current.function.chunk;
+    }
+
+    private void emitByte(int b) {
+        chunk().write(b, line);
+    }
+
+    private void emitShort(int s) {
+        emitByte((s >> 8) & 0xff);
+        emitByte(s & 0xff);
+    }
+
+    private void emitOp(byte op) {
+        emitByte(op);
+        adjustStack(OpCode.STACK_EFFECT[op]);
+    }
+
+    private void adjustStack(int effect) {
+        current.stackDepth += effect;
+        if (current.stackDepth > current.function.maxStack) {
+            current.function.maxStack = current.stackDepth;
+        }
+    }
+
+    private void emitReturn() {
+        if (current.type == FunctionType.INITIALIZER) {
+            // initializers always return the instance
+            emitOp(OpCode.GET_LOCAL);
+            emitByte(0);
+        } else {
+            emitOp(OpCode.NIL);
+        }
+        emitOp(OpCode.RETURN);
+    }
+
+    private int makeConstant(Object value) {
+        int index = chunk().addConstant(value);
+        if (index >= MAX_CONSTANTS) {
+            lox.error(line, "Too many constants in one chunk.");
+            return 0;
+        }
+        return index;
+    }
+
+    /** Emits a forward jump and returns the offset of its operand, to be patched later **/
+    private int emitJump(byte op) {
+        emitOp(op);
+        emitShort(0xffff);
+        return chunk().count - 2;
+    }
+
+    private void patchJump(int offset) {
+        // -2 to account for the jump operand itself
+        int jump = chunk().count - offset - 2;
+        if (jump > MAX_JUMP) {
+            lox.error(line, "Too much code to jump over.");
+        }
+
+        chunk().code[offset] = (byte) ((jump >> 8) & 0xff);
+        chunk().code[offset + 1] = (byte) (jump & 0xff);
+    }
+
+    private void emitLoop(int loopStart) {
+        emitOp(OpCode.LOOP);
+
+        // +2 to also jump back over the operand
+        int offset = chunk().count - loopStart + 2;
+        if (offset > MAX_JUMP) {
+            lox.error(line, "Loop body too large.");
+        }
+        emitShort(offset);
+    }
+    // ------------- END EMIT HELPERS ------------- //
+
+    // ------------- START EXPRESSION COMPILERS ------------- //
+    @Override
+    public Void visitBinaryExpr(Expr.Binary binary) {
+        compile(binary.left);
+        compile(binary.right);
+
+        line = binary.operator.line;
+        switch (binary.operator.type) {
+        case PLUS: emitOp(OpCode.ADD); break;
+        case MINUS: emitOp(OpCode.SUBTRACT); break;
+        case STAR: emitOp(OpCode.MULTIPLY); break;
+        case SLASH: emitOp(OpCode.DIVIDE); break;
+        case GREATER: emitOp(OpCode.GREATER); break;
+        case GREATER_EQUAL: emitOp(OpCode.GREATER_EQUAL); break;
+        case LESS: emitOp(OpCode.LESS); break;
+        case LESS_EQUAL: emitOp(OpCode.LESS_EQUAL); break;
+        case EQUAL_EQUAL: emitOp(OpCode.EQUAL); break;
+        case BANG_EQUAL: emitOp(OpCode.NOT_EQUAL); break;
+        default:
+            throw new IllegalStateException("Unknown binary operator " + binary.operator.type);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call call) {
+        int argCount = call.arguments.size();
+
+        if (call.callee instanceof Expr.Get) {
+            // invoke the method directly instead of creating a bound method first
+            Expr.Get get = (Expr.Get) call.callee;
+            compile(get.object);
+            compileArguments(call.arguments);
+            line = call.paren.line;
+            emitOp(OpCode.INVOKE);
+            emitShort(makeConstant(get.name.lexeme));
+            emitByte(argCount);
+            adjustStack(-argCount);
+            return null;
+        }
+
+        if (call.callee instanceof Expr.Super) {
+            Expr.Super superExpr = (Expr.Super) call.callee;
+            namedVariable(new Token(TokenType.THIS, "this", null, superExpr.keyword.line), false, false);
+            compileArguments(call.arguments);
+            namedVariable(superExpr.keyword, false, false);
+            line = call.paren.line;
+            emitOp(OpCode.SUPER_INVOKE);
+            emitShort(makeConstant(superExpr.method.lexeme));
+            emitByte(argCount);
+            adjustStack(-argCount - 1);
+            return null;
+        }
+
+        compile(call.callee);
+        compileArguments(call.arguments);
+        line = call.paren.line;
+        emitOp(OpCode.CALL);
+        emitByte(argCount);
+        adjustStack(-argCount);
+        return null;
+    }
+
+    private void compileArguments(List<Expr> arguments) {
+        for (Expr arg : arguments) {
+            compile(arg);
+        }
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get get) {
+        compile(get.object);
+        line = get.name.line;
+        emitOp(OpCode.GET_PROPERTY);
+        emitShort(makeConstant(get.name.lexeme));
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set set) {
+        compile(set.object);
+        compile(set.value);
+        line = set.name.line;
+        emitOp(OpCode.SET_PROPERTY);
+        emitShort(makeConstant(set.name.lexeme));
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super superExpr) {
+        namedVariable(new Token(TokenType.THIS, "this", null, superExpr.keyword.line), false, false);
+        namedVariable(superExpr.keyword, false, false);
+        line = superExpr.method.line;
+        emitOp(OpCode.GET_SUPER);
+        emitShort(makeConstant(superExpr.method.lexeme));
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This thisExpr) {
+        namedVariable(thisExpr.keyword, false, false);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping grouping) {
+        compile(grouping.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal literal) {
+        if (literal.value == null) {
+            emitOp(OpCode.NIL);
+        } else if (literal.value == Boolean.TRUE) {
+            emitOp(OpCode.TRUE);
+        } else if (literal.value == Boolean.FALSE) {
+            emitOp(OpCode.FALSE);
+        } else {
+            emitOp(OpCode.CONSTANT);
+            emitShort(makeConstant(literal.value));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary unary) {
+        compile(unary.right);
+        line = unary.operator.line;
+        emitOp(unary.operator.type == TokenType.BANG ? OpCode.NOT : OpCode.NEGATE);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable variable) {
+        namedVariable(variable.name, variable.depth == -1, false);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign assign) {
+        compile(assign.value);
+        namedVariable(assign.name, assign.depth == -1, true);
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical logical) {
+        compile(logical.left);
+
+        // the left operand is the result if it short-circuits, otherwise it is discarded
+        int endJump = emitJump(logical.operator.type == TokenType.OR
+                           ? OpCode.JUMP_IF_TRUE
+                           : OpCode.JUMP_IF_FALSE);
+        emitOp(OpCode.POP);
+        compile(logical.right);
+        patchJump(endJump);
+        return null;
+    }
+    // ------------- END EXPRESSION COMPILERS ------------- //
+
+    // ------------- START STATEMENT COMPILERS ------------- //
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression expressionStmt) {
+        compile(expressionStmt.expression);
+        emitOp(OpCode.POP);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print printStmt) {
+        compile(printStmt.expression);
+        emitOp(OpCode.PRINT);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var varStmt) {
+        if (varStmt.initializer != null) {
+            compile(varStmt.initializer);
+        } else {
+            emitOp(OpCode.NIL);
+        }
+
+        defineVariable(varStmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return returnStmt) {
+        line = returnStmt.keyword.line;
+        if (returnStmt.value == null) {
+            emitReturn();
+        } else {
+            compile(returnStmt.value);
+            emitOp(OpCode.RETURN);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function functionStmt) {
+        if (current.scopeDepth > 0) {
+            // declare the local first so that the function can refer to itself
+            addLocal(functionStmt.name);
+            function(functionStmt, FunctionType.FUNCTION);
+        } else {
+            function(functionStmt, FunctionType.FUNCTION);
+            defineVariable(functionStmt.name);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class classStmt) {
+        Token className = classStmt.name;
+        boolean isGlobal = current.scopeDepth == 0;
+
+        line = className.line;
+        emitOp(OpCode.CLASS);
+        emitShort(makeConstant(className.lexeme));
+        defineVariable(className);
+
+        ClassState classState = new ClassState(currentClass);
+        currentClass = classState;
+
+        if (classStmt.superclass != null) {
+            // the superclass is kept in a local named 'super' for the methods to capture
+            beginScope();
+            compile(classStmt.superclass);
+            addLocal(new Token(TokenType.SUPER, "super", null, className.line));
+
+            namedVariable(className, isGlobal, false);
+            line = classStmt.superclass.name.line;
+            emitOp(OpCode.INHERIT);
+            classState.hasSuperclass = true;
+        }
+
+        namedVariable(className, isGlobal, false);
+        for (Stmt.Function method : classStmt.methods) {
+            boolean isInitializer = method.name.lexeme.equals(LoxClass.INIT_KEYWORD);
+            function(method, isInitializer ? FunctionType.INITIALIZER : FunctionType.METHOD);
+            emitOp(OpCode.METHOD);
+            emitShort(makeConstant(method.name.lexeme));
+        }
+        emitOp(OpCode.POP);
+
+        if (classState.hasSuperclass) {
+            endScope();
+        }
+        currentClass = currentClass.enclosing;
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block blockStmt) {
+        beginScope();
+        for (Stmt stmt : blockStmt.statements) {
+            compile(stmt);
+        }
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If ifStmt) {
+        compile(ifStmt.condition);
+
+        int thenJump = emitJump(OpCode.JUMP_IF_FALSE);
+        int conditionDepth = current.stackDepth;
+        emitOp(OpCode.POP);
+        compile(ifStmt.thenBranch);
+        int elseJump = emitJump(OpCode.JUMP);
+
+        patchJump(thenJump);
+        // the condition is still on the stack when the then branch is skipped
+        current.stackDepth = conditionDepth;
+        emitOp(OpCode.POP);
+        if (ifStmt.elseBranch != null) {
+            compile(ifStmt.elseBranch);
+        }
+        patchJump(elseJump);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While whileStmt) {
+        int loopStart = chunk().count;
+        compile(whileStmt.condition);
+
+        int exitJump = emitJump(OpCode.JUMP_IF_FALSE);
+        int conditionDepth = current.stackDepth;
+        emitOp(OpCode.POP);
+        compile(whileStmt.body);
+        emitLoop(loopStart);
+
+        patchJump(exitJump);
+        current.stackDepth = conditionDepth;
+        emitOp(OpCode.POP);
+        return null;
+    }
+    // ------------- END STATEMENT COMPILERS ------------- //
+}
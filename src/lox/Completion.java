@@ -0,0 +1,14 @@
+package lox;
+
+/**
+ * How a statement finished executing. A 'return' travels up through the enclosing blocks, ifs
+ * and loops as an ordinary value rather than an exception, while the value being returned waits
+ * in {@link Interpreter#returnValue} for the function call to pick it up. A call in tail
+ * position completes with TAIL_CALL instead, leaving the callee in {@link Interpreter#tailCallee}
+ * and its arguments in the current frame for the trampoline in {@link LoxFunction} to run.
+ */
+enum Completion {
+    NORMAL,
+    RETURN,
+    TAIL_CALL
+}
@@ -0,0 +1,30 @@
+package lox;
+
+/**
+ * Boxes numbers, handing out shared {@link Double}s for small integers.
+ *
+ * Loop counters, indices, depths and most arguments of recursive functions are small integers,
+ * so caching them removes a large part of the boxing the interpreter would otherwise allocate.
+ */
+final class DoubleCache {
+    private static final int LOW = -128;
+    private static final int HIGH = 1023;
+    private static final Double[] CACHE = new Double[HIGH - LOW + 1];
+
+    static {
+        for (int i = 0; i < CACHE.length; i++) {
+            CACHE[i] = (double) (i + LOW);
+        }
+    }
+
+    private DoubleCache() {}
+
+    static Double valueOf(double value) {
+        int i = (int) value;
+        // -0.0 compares equal to 0 but prints differently, so it is never shared
+        if (i == value && i >= LOW && i <= HIGH && (i != 0 || 1 / value > 0)) {
+            return CACHE[i - LOW];
+        }
+        return value;
+    }
+}
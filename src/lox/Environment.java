@@ -5,66 +5,67 @@ import java.util.Map;
 
 public class Environment {
     final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<>();
+    /** local variables live in slots assigned by the resolver **/
+    final Object[] slots;
+    /** only the global environment looks variables up by name, see {@link Global} **/
+    private final Map<String, Global> globals;
+
+    private static final Object[] NO_SLOTS = new Object[0];
 
     /** The global environment has no parent **/
     Environment() {
         enclosing = null;
+        slots = NO_SLOTS;
+        globals = new HashMap<>();
     }
 
     /** All non-global environments must have a parent **/
-    Environment(Environment enclosing) {
+    Environment(Environment enclosing, int slotCount) {
         this.enclosing = enclosing;
+        this.slots = slotCount == 0 ? NO_SLOTS : new Object[slotCount];
+        this.globals = null;
     }
 
-    void define(String name, Object value) {
-        values.put(name, value);
-    }
-
-    Object get(Token token) {
-        String name = token.lexeme;
-        if (values.containsKey(name)) {
-            return values.get(name);
-        }
-
-        if (enclosing != null) {
-            return enclosing.get(token);
+    // ------------- START OF GLOBALS -------------- //
+    /** The cell of a global, which is made undefined the first time the name comes up **/
+    Global global(String name) {
+        Global global = globals.get(name);
+        if (global == null) {
+            global = new Global(this, name);
+            globals.put(name, global);
         }
-
-        throw new RuntimeError(token, "Undefined variable '" + name + "'.");
+        return global;
     }
 
-    Object getAt(int distance, String name) {
-        // Note: Environment.get is not used as it will continue walking up the env chain
-        return ancestor(distance).values.get(name);
+    void define(String name, Object value) {
+        global(name).define(value);
     }
 
-    Object getAt(int distance, Token name) {
-        // Note: Environment.get is not used as it will continue walking up the env chain
-        return ancestor(distance).values.get(name.lexeme);
+    Object get(Token token) {
+        return global(token.lexeme).get(token);
     }
 
     void assign(Token name, Object value) {
-        if (values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
-            return;
-        }
+        global(name.lexeme).assign(name, value);
+    }
+    // ------------- END OF GLOBALS -------------- //
 
-        if (enclosing != null) {
-            enclosing.assign(name, value);
-            return;
-        }
+    // ------------- START OF LOCALS -------------- //
+    void define(int slot, Object value) {
+        slots[slot] = value;
+    }
 
-        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+    Object getAt(int distance, int slot) {
+        return ancestor(distance).slots[slot];
     }
 
-    void assignAt(int distance, Token name, Object value) {
-        // Note: Environment.assign is not used as it will continue walking up the env chain
-        ancestor(distance).values.put(name.lexeme, value);
+    void assignAt(int distance, int slot, Object value) {
+        ancestor(distance).slots[slot] = value;
     }
+    // ------------- END OF LOCALS -------------- //
 
     // ------------- START OF UTILS -------------- //
-    private Environment ancestor(int distance) {
+    Environment ancestor(int distance) {
         Environment environment = this;
 
         for (int i = 0; i < distance; i++) {
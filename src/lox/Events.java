@@ -0,0 +1,93 @@
+package lox;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * The events jlox emits to JDK Flight Recorder, under the "Lox" category. Like any JFR event they
+ * are only recorded when a recording is running, and can be turned on and off or given another
+ * threshold in its settings, e.g. lox.Call#threshold=0 ms.
+ *
+ * Loading the first event class starts up JFR, which would add over a tenth of a second to every
+ * run, so no event is made before something (-XX:StartFlightRecording, jcmd JFR.start) has
+ * started JFR itself.
+ *
+ * The JVM stack of the interpreter says little about the Lox program, so no stack traces are taken.
+ */
+final class Events {
+    private Events() {}
+
+    /** Whether JFR is up, so events can be made without starting it **/
+    static boolean recording() {
+        return FlightRecorder.isInitialized();
+    }
+
+    /**
+     * Begins the event of a call, or returns null while JFR is not up or no recording has lox.Call
+     * enabled. Calls are the hottest path, so the setting is checked without making an event.
+     */
+    static Call beginCall() {
+        if (!recording() || !CallType.TYPE.isEnabled()) return null;
+
+        Call event = new Call();
+        event.begin();
+        return event;
+    }
+
+    /** Holds the type of {@link Call}, which is only looked up once JFR is up **/
+    private static final class CallType {
+        static final EventType TYPE = EventType.getEventType(Call.class);
+    }
+
+    /** A call to a Lox function, from entry to exit, so slow calls line up with GC pauses **/
+    @Name("lox.Call")
+    @Label("Lox Call")
+    @Category("Lox")
+    @Description("A call to a Lox function that took longer than the threshold")
+    @Threshold("10 ms")
+    @StackTrace(false)
+    static final class Call extends Event {
+        @Label("Function")
+        String function;
+
+        @Label("Line")
+        @Description("The line the function is declared on")
+        int line;
+    }
+
+    /**
+     * An instance being made by calling a class. There are too many of these to record by default,
+     * so they have to be enabled in the recording's settings.
+     */
+    @Name("lox.Instantiate")
+    @Label("Lox Instantiation")
+    @Category("Lox")
+    @Description("An instance of a Lox class being made")
+    @Enabled(false)
+    @StackTrace(false)
+    static final class Instantiate extends Event {
+        @Label("Class")
+        String className;
+    }
+
+    @Name("lox.RuntimeError")
+    @Label("Lox Runtime Error")
+    @Category("Lox")
+    @Description("A runtime error that aborted a Lox program")
+    @StackTrace(false)
+    static final class RuntimeError extends Event {
+        @Label("Message")
+        String message;
+
+        @Label("Line")
+        int line;
+    }
+}
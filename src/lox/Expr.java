@@ -24,6 +24,8 @@ abstract class Expr {
         final Expr left;
         final Token operator;
         final Expr right;
+        BinaryNode node = BinaryNode.UNINITIALIZED;
+        boolean numeric;
 
         Binary(Expr left, Token operator, Expr right) {
             this.left = left;
@@ -41,6 +43,7 @@ abstract class Expr {
         final Expr callee;
         final List<Expr> arguments;
         final Token paren;
+        LoxCallable checkedCallee;
 
         Call(Expr callee, List<Expr> arguments, Token paren) {
             this.callee = callee;
@@ -57,6 +60,7 @@ abstract class Expr {
     static class Get extends Expr {
         final Expr object;
         final Token name;
+        InlineCache cache = new InlineCache();
 
         Get(Expr object, Token name) {
             this.object = object;
@@ -89,6 +93,10 @@ abstract class Expr {
     static class Super extends Expr {
         final Token keyword;
         final Token method;
+        int depth = -1;
+        int thisDepth = -1;
+        int thisSlot;
+        InlineCache cache = new InlineCache();
 
         Super(Token keyword, Token method) {
             this.keyword = keyword;
@@ -103,6 +111,8 @@ abstract class Expr {
 
     static class This extends Expr {
         final Token keyword;
+        int depth = -1;
+        int slot;
 
         This(Token keyword) {
             this.keyword = keyword;
@@ -157,6 +167,9 @@ abstract class Expr {
 
     static class Variable extends Expr {
         final Token name;
+        int depth = -1;
+        int slot;
+        Global global;
 
         Variable(Token name) {
             this.name = name;
@@ -171,6 +184,9 @@ abstract class Expr {
     static class Assign extends Expr {
         final Token name;
         final Expr value;
+        int depth = -1;
+        int slot;
+        Global global;
 
         Assign(Token name, Expr value) {
             this.name = name;
@@ -0,0 +1,39 @@
+package lox;
+
+/**
+ * A global variable. The global environment makes one cell per name, the first time the name
+ * comes up, and keeps it for good, so that {@link Expr.Variable} and {@link Expr.Assign} nodes can
+ * hold on to the cell instead of looking the name up on every access. A cell can be mentioned
+ * before its 'var' has run (e.g. in a function declared earlier), so it starts out undefined.
+ */
+final class Global {
+    private static final Object UNDEFINED = new Object();
+
+    /** the global environment the cell belongs to, as a tree may be run by several interpreters **/
+    final Environment environment;
+    final String name;
+    private Object value = UNDEFINED;
+
+    Global(Environment environment, String name) {
+        this.environment = environment;
+        this.name = name;
+    }
+
+    void define(Object value) {
+        this.value = value;
+    }
+
+    Object get(Token token) {
+        if (value == UNDEFINED) {
+            throw new RuntimeError(token, "Undefined variable '" + name + "'.");
+        }
+        return value;
+    }
+
+    void assign(Token token, Object value) {
+        if (this.value == UNDEFINED) {
+            throw new RuntimeError(token, "Undefined variable '" + name + "'.");
+        }
+        this.value = value;
+    }
+}
@@ -0,0 +1,54 @@
+package lox;
+
+/**
+ * A small polymorphic inline cache for one property access site (an {@link Expr.Get} or
+ * {@link Expr.Super} node), remembering what the lookup found for the last few receivers.
+ *
+ * Get sites are keyed by the instance's {@link Shape}, which pins both its class and its field
+ * layout, and remember either a field offset or the method. Super sites are keyed by the
+ * superclass. A site that sees more than {@link #MAX_ENTRIES} keys is megamorphic and keeps
+ * replacing its entries in turn, which is still correct, just slower.
+ */
+final class InlineCache {
+    private static final int MAX_ENTRIES = 4;
+
+    private final Object[] keys = new Object[MAX_ENTRIES];
+    private final int[] offsets = new int[MAX_ENTRIES];
+    private final LoxFunction[] methods = new LoxFunction[MAX_ENTRIES];
+    private int size = 0;
+    // next entry to replace once the cache is full
+    private int victim = 0;
+
+    /** Returns the entry for the key, or -1 if it has not been seen yet **/
+    int find(Object key) {
+        for (int i = 0; i < size; i++) {
+            if (keys[i] == key) return i;
+        }
+        return -1;
+    }
+
+    /** Remembers the result of a lookup, returning its entry **/
+    int add(Object key, int offset, LoxFunction method) {
+        int entry;
+        if (size < MAX_ENTRIES) {
+            entry = size++;
+        } else {
+            entry = victim;
+            victim = (victim + 1) % MAX_ENTRIES;
+        }
+
+        keys[entry] = key;
+        offsets[entry] = offset;
+        methods[entry] = method;
+        return entry;
+    }
+
+    /** The field offset found for the entry, or -1 if the lookup found a method **/
+    int offset(int entry) {
+        return offsets[entry];
+    }
+
+    LoxFunction method(int entry) {
+        return methods[entry];
+    }
+}
@@ -1,20 +1,51 @@
 package lox;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
+public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Completion> {
     /** holds pre-defined native functions **/
     final Environment GLOBALS = new Environment();
+    /** the innermost environment, which holds the captured variables in scope, see {@link Resolver} **/
     Environment environment = GLOBALS;
-    private final Map<Expr, Integer> locals = new HashMap<>();
+    /** the locals of the running call that no closure captures, or of top-level code outside calls **/
+    Object[] frame = NO_LOCALS;
+    /** one frame per call depth, reused by every call made at that depth **/
+    private Object[][] frames = new Object[64][];
+    private int callDepth = 0;
+    /** whether hot functions get compiled to JVM bytecode, see {@link Jit} **/
+    boolean jitEnabled = false;
+    /** whether binary expressions rewrite themselves for the operand types they see, see {@link BinaryNode} **/
+    boolean specializing = false;
+    /** the value of the 'return' statement currently unwinding, see {@link Completion} **/
+    Object returnValue = null;
+    /** the function a tail call is about to jump to, see {@link Completion#TAIL_CALL} **/
+    LoxFunction tailCallee = null;
+    /** keeps track of the Lox call stack for sampling, with --profile **/
+    Profiler profiler = null;
+    /** counts what the program does, with --stats **/
+    Stats stats = null;
+
+    /** the run that gets the program's output and runtime errors **/
+    final Lox lox;
+
+    private static final Object[] NO_LOCALS = new Object[0];
+
+    Interpreter(Lox lox) {
+        this.lox = lox;
+        frames[0] = frame;
 
-    Interpreter() {
         GLOBALS.define("clock", new LoxCallable() {
             @Override
             public Object call(Interpreter interpreter, List<Object> arguments) {
+                return call0(interpreter);
+            }
+
+            @Override
+            public Object call0(Interpreter interpreter) {
                 return (double) System.currentTimeMillis() / 1000.0;
             }
 
@@ -42,14 +73,11 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitUnaryExpr(Expr.Unary unary) {
-        Object right = evaluate(unary.right);
-
         switch (unary.operator.type) {
             case BANG:
-                return !isTruthy(right);
+                return !isTruthy(evaluate(unary.right));
             case MINUS:
-                checkNumberOperand(unary.operator, right);
-                return - (double) right;
+                return DoubleCache.valueOf(evaluateNumber(unary));
         default:
             return null;
         }
@@ -57,42 +85,116 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitBinaryExpr(Expr.Binary binary) {
+        if (specializing) {
+            return binary.node.execute(this, binary);
+        }
+
+        // arithmetic the resolver knows to be numeric keeps its intermediate results unboxed
+        if (binary.numeric) {
+            return DoubleCache.valueOf(evaluateNumber(binary));
+        }
+
         Object left = evaluate(binary.left);
         Object right = evaluate(binary.right);
+        return binaryOperation(binary.operator, left, right);
+    }
+
+    /** Whether an expression always produces a number (or fails), see {@link #evaluateNumber} **/
+    static boolean isNumeric(Expr expr) {
+        if (expr instanceof Expr.Literal) return ((Expr.Literal) expr).value instanceof Double;
+        if (expr instanceof Expr.Binary) return ((Expr.Binary) expr).numeric;
+        if (expr instanceof Expr.Unary) return ((Expr.Unary) expr).operator.type == TokenType.MINUS;
+        if (expr instanceof Expr.Grouping) return isNumeric(((Expr.Grouping) expr).expression);
+        return false;
+    }
+
+    /** Evaluates an expression for which {@link #isNumeric} holds, without boxing the result **/
+    private double evaluateNumber(Expr expr) {
+        if (expr instanceof Expr.Literal) {
+            return (double) ((Expr.Literal) expr).value;
+        }
+        if (expr instanceof Expr.Grouping) {
+            return evaluateNumber(((Expr.Grouping) expr).expression);
+        }
+        if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary) expr;
+            if (isNumeric(unary.right)) {
+                return -evaluateNumber(unary.right);
+            }
+            Object right = evaluate(unary.right);
+            checkNumberOperand(unary.operator, right);
+            return -(double) right;
+        }
+
+        Expr.Binary binary = (Expr.Binary) expr;
+        boolean leftIsNumeric = isNumeric(binary.left);
+        boolean rightIsNumeric = isNumeric(binary.right);
+
+        // operands that are not known to be numbers are only checked once both have been evaluated
+        double left = 0;
+        double right = 0;
+        Object leftValue = null;
+        Object rightValue = null;
+        if (leftIsNumeric) {
+            left = evaluateNumber(binary.left);
+        } else {
+            leftValue = evaluate(binary.left);
+        }
+        if (rightIsNumeric) {
+            right = evaluateNumber(binary.right);
+        } else {
+            rightValue = evaluate(binary.right);
+        }
+        if (!leftIsNumeric && !(leftValue instanceof Double) ||
+                !rightIsNumeric && !(rightValue instanceof Double)) {
+            throw new RuntimeError(binary.operator, "Operands must be a number.");
+        }
+        if (!leftIsNumeric) left = (double) leftValue;
+        if (!rightIsNumeric) right = (double) rightValue;
 
         switch (binary.operator.type) {
+        case PLUS: return left + right;
+        case MINUS: return left - right;
+        case STAR: return left * right;
+        default: return left / right;
+        }
+    }
+
+    /** The generic binary operators, checking operand types on every run **/
+    static Object binaryOperation(Token operator, Object left, Object right) {
+        switch (operator.type) {
         // arithmetic operators
         case MINUS:
-            checkNumberOperands(binary.operator, left, right);
-            return (double) left - (double) right;
+            checkNumberOperands(operator, left, right);
+            return DoubleCache.valueOf((double) left - (double) right);
         case PLUS:
             // string concatenation
-            if (left instanceof String && right instanceof String) {
-                return (String) left + (String) right;
+            if (Rope.isString(left) && Rope.isString(right)) {
+                return Rope.concat(left, right);
             }
             if (left instanceof Double && right instanceof Double) {
-                return (double) left + (double) right;
+                return DoubleCache.valueOf((double) left + (double) right);
             }
 
-            throw new RuntimeError(binary.operator, "Operands must be either numbers or strings.");
+            throw new RuntimeError(operator, "Operands must be either numbers or strings.");
         case STAR:
-            checkNumberOperands(binary.operator, left, right);
-            return (double) left * (double) right;
+            checkNumberOperands(operator, left, right);
+            return DoubleCache.valueOf((double) left * (double) right);
         case SLASH:
-            checkNumberOperands(binary.operator, left, right);
-            return (double) left / (double) right;
+            checkNumberOperands(operator, left, right);
+            return DoubleCache.valueOf((double) left / (double) right);
         // comparison operators
         case GREATER:
-            checkNumberOperands(binary.operator, left, right);
+            checkNumberOperands(operator, left, right);
             return (double) left > (double) right;
         case GREATER_EQUAL:
-            checkNumberOperands(binary.operator, left, right);
+            checkNumberOperands(operator, left, right);
             return (double) left >= (double) right;
         case LESS:
-            checkNumberOperands(binary.operator, left, right);
+            checkNumberOperands(operator, left, right);
             return (double) left < (double) right;
         case LESS_EQUAL:
-            checkNumberOperands(binary.operator, left, right);
+            checkNumberOperands(operator, left, right);
             return (double) left <= (double) right;
         // equality operators
         case EQUAL_EQUAL:
@@ -106,28 +208,124 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitCallExpr(Expr.Call call) {
+        // method calls skip binding the method to its instance
+        if (call.callee instanceof Expr.Get) {
+            return invokeMethod(call, (Expr.Get) call.callee);
+        }
+        if (call.callee instanceof Expr.Super) {
+            return invokeSuperMethod(call, (Expr.Super) call.callee);
+        }
+
         //--------- process callee ----------//
         Object callee = evaluate(call.callee);
+        LoxCallable callable = checkCallable(callee, call.paren);
 
-        if (!(callee instanceof LoxCallable)) {
-            throw new RuntimeError(call.paren, "Only functions and classes can be called.");
+        //--------- process args ----------//
+        return callWithArguments(call, callable, null);
+    }
+
+    /** Calls obj.name(...) with obj as the receiver, without allocating a bound method **/
+    private Object invokeMethod(Expr.Call call, Expr.Get get) {
+        Object object = evaluate(get.object);
+
+        if (!(object instanceof LoxInstance)) {
+            throw new RuntimeError(get.name, "Only instances can have properties.");
         }
-        LoxCallable callable = (LoxCallable) callee;
 
-        //--------- process args ----------//
-        List<Object> arguments = new ArrayList<>();
-        for (Expr arg : call.arguments) {
-            arguments.add(evaluate(arg));
+        LoxInstance instance = (LoxInstance) object;
+        LoxCallable callable = checkCallable(instance.getCallee(get.name, get.cache), call.paren);
+        return callWithArguments(call, callable, instance);
+    }
+
+    private Object invokeSuperMethod(Expr.Call call, Expr.Super superExpr) {
+        LoxFunction method = findSuperMethod(superExpr);
+        LoxInstance thisObject = (LoxInstance) lookUp(superExpr.thisDepth, superExpr.thisSlot);
+        return callWithArguments(call, method, thisObject);
+    }
+
+    /**
+     * Evaluates the arguments and makes the call. Calls with few arguments go through the fixed
+     * arity entry points and never build an argument list. The receiver is passed on to methods
+     * that were looked up without being bound, and is null for plain calls.
+     **/
+    private Object callWithArguments(Expr.Call call, LoxCallable callable, LoxInstance receiver) {
+        List<Expr> args = call.arguments;
+        int argc = args.size();
+        if (argc > LoxCallable.MAX_FIXED_ARITY) {
+            List<Object> arguments = new ArrayList<>(argc);
+            for (Expr arg : args) {
+                arguments.add(evaluate(arg));
+            }
+            checkArity(call, callable, argc);
+            return invoke(callable, receiver, arguments);
         }
 
-        if (arguments.size() != callable.arity()) {
-            throw new RuntimeError(call.paren, "Expected " + callable.arity() + " arguments but got " +
-                                          arguments.size() + ".");
+        Object a0 = argc > 0 ? evaluate(args.get(0)) : null;
+        Object a1 = argc > 1 ? evaluate(args.get(1)) : null;
+        Object a2 = argc > 2 ? evaluate(args.get(2)) : null;
+        Object a3 = argc > 3 ? evaluate(args.get(3)) : null;
+        return callFixed(call, receiver, callable, a0, a1, a2, a3);
+    }
+
+    /** Calls with the call's (at most four) evaluated arguments, the unused ones being null **/
+    Object callFixed(Expr.Call call, LoxInstance receiver, LoxCallable callable,
+                     Object a0, Object a1, Object a2, Object a3) {
+        int argc = call.arguments.size();
+        checkArity(call, callable, argc);
+
+        if (callable instanceof LoxFunction) {
+            LoxFunction function = (LoxFunction) callable;
+            switch (argc) {
+            case 0: return function.call0(this, receiver);
+            case 1: return function.call1(this, receiver, a0);
+            case 2: return function.call2(this, receiver, a0, a1);
+            case 3: return function.call3(this, receiver, a0, a1, a2);
+            default: return function.call4(this, receiver, a0, a1, a2, a3);
+            }
+        }
+
+        switch (argc) {
+        case 0: return callable.call0(this);
+        case 1: return callable.call1(this, a0);
+        case 2: return callable.call2(this, a0, a1);
+        case 3: return callable.call3(this, a0, a1, a2);
+        default: return callable.call4(this, a0, a1, a2, a3);
         }
+    }
 
+    /** Calls a callable looked up on an instance, passing the instance on as the receiver **/
+    Object invoke(LoxCallable callable, LoxInstance receiver, List<Object> arguments) {
+        if (callable instanceof LoxFunction) {
+            return ((LoxFunction) callable).call(this, receiver, arguments);
+        }
         return callable.call(this, arguments);
     }
 
+    /**
+     * Checks the argument count at a call site. A callee's arity never changes, so each site
+     * remembers the last callee that passed and skips the check while it keeps calling it.
+     **/
+    static void checkArity(Expr.Call call, LoxCallable callable, int argumentCount) {
+        if (call.checkedCallee == callable) return;
+
+        checkArity(callable, argumentCount, call.paren);
+        call.checkedCallee = callable;
+    }
+
+    static LoxCallable checkCallable(Object callee, Token paren) {
+        if (!(callee instanceof LoxCallable)) {
+            throw new RuntimeError(paren, "Only functions and classes can be called.");
+        }
+        return (LoxCallable) callee;
+    }
+
+    static void checkArity(LoxCallable callable, int argumentCount, Token paren) {
+        if (argumentCount != callable.arity()) {
+            throw new RuntimeError(paren, "Expected " + callable.arity() + " arguments but got " +
+                                          argumentCount + ".");
+        }
+    }
+
     @Override
     public Object visitGetExpr(Expr.Get get) {
         Object object = evaluate(get.object);
@@ -137,7 +335,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         }
 
         LoxInstance instance = (LoxInstance) object;
-        return instance.get(get.name);
+        return instance.get(this, get.name, get.cache);
     }
 
     @Override
@@ -156,47 +354,79 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitSuperExpr(Expr.Super superExpr) {
-        Integer distance = locals.get(superExpr);
-        LoxClass superclass = (LoxClass) environment.getAt(distance, "super");
-        // Hack: the 'this' keyword is always bound ONE environment inside the 'super' environment
-        LoxInstance thisObject = (LoxInstance) environment.getAt(distance - 1, "this");
+        LoxFunction method = findSuperMethod(superExpr);
+        LoxInstance thisObject = (LoxInstance) lookUp(superExpr.thisDepth, superExpr.thisSlot);
+        return method.bind(this, thisObject);
+    }
 
-        LoxFunction method = superclass.findMethod(superExpr.method.lexeme);
-        if (method == null) {
-            throw new RuntimeError(superExpr.method, "Undefined property: " + superExpr.method.lexeme + ".");
-        }
+    private LoxFunction findSuperMethod(Expr.Super superExpr) {
+        // 'super' is the only variable in its environment
+        LoxClass superclass = (LoxClass) environment.getAt(superExpr.depth, 0);
 
-        return method.bind(thisObject);
+        InlineCache cache = superExpr.cache;
+        int entry = cache.find(superclass);
+        if (entry == -1) {
+            LoxFunction method = superclass.findMethod(superExpr.method.lexeme);
+            if (method == null) {
+                throw new RuntimeError(superExpr.method, "Undefined property: " + superExpr.method.lexeme + ".");
+            }
+            entry = cache.add(superclass, -1, method);
+        }
+        return cache.method(entry);
     }
 
     @Override
     public Object visitThisExpr(Expr.This thisExpr) {
-        return lookUpVariable(thisExpr.keyword, thisExpr);
+        return lookUp(thisExpr.depth, thisExpr.slot);
     }
 
     @Override
     public Object visitVariableExpr(Expr.Variable variable) {
-        return lookUpVariable(variable.name, variable);
+        if (variable.depth == -1) {
+            return getGlobal(variable);
+        }
+
+        return lookUp(variable.depth, variable.slot);
+    }
+
+    /** Reads a global through the cell cached on the node, only looking it up by name the first time **/
+    Object getGlobal(Expr.Variable variable) {
+        Global global = variable.global;
+        if (global == null || global.environment != GLOBALS) {
+            global = GLOBALS.global(variable.name.lexeme);
+            variable.global = global;
+        }
+        return global.get(variable.name);
     }
 
-    private Object lookUpVariable(Token name, Expr var) {
-        Integer distance = locals.get(var);
-        if (distance == null) {
-            return GLOBALS.get(name);
+    /** Assigns a global through the cell cached on the node, see {@link #getGlobal} **/
+    void assignGlobal(Expr.Assign assign, Object value) {
+        Global global = assign.global;
+        if (global == null || global.environment != GLOBALS) {
+            global = GLOBALS.global(assign.name.lexeme);
+            assign.global = global;
         }
+        global.assign(assign.name, value);
+    }
 
-        return environment.getAt(distance, name);
+    /** Reads a local, from the frame or from an environment the given number of scopes out **/
+    private Object lookUp(int depth, int slot) {
+        if (depth == Resolver.FRAME) {
+            return frame[slot];
+        }
+        return environment.getAt(depth, slot);
     }
 
     @Override
     public Object visitAssignExpr(Expr.Assign assign) {
         Object value = evaluate(assign.value);
 
-        Integer distance = locals.get(assign);
-        if (distance == null) {
-            GLOBALS.assign(assign.name, value);
+        if (assign.depth == -1) {
+            assignGlobal(assign, value);
+        } else if (assign.depth == Resolver.FRAME) {
+            frame[assign.slot] = value;
         } else {
-            environment.assignAt(distance, assign.name, value);
+            environment.assignAt(assign.depth, assign.slot, value);
         }
 
         return value;
@@ -215,40 +445,93 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     }
 
     @Override
-    public Void visitExpressionStmt(Stmt.Expression expressionStmt) {
+    public Completion visitExpressionStmt(Stmt.Expression expressionStmt) {
         evaluate(expressionStmt.expression);
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitPrintStmt(Stmt.Print printStmt) {
+    public Completion visitPrintStmt(Stmt.Print printStmt) {
         Object result = evaluate(printStmt.expression);
-        System.out.println(stringify(result));
-        return null;
+        lox.out.println(stringify(result));
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitReturnStmt(Stmt.Return returnStmt) {
+    public Completion visitReturnStmt(Stmt.Return returnStmt) {
+        if (returnStmt.tailCall) {
+            return tailCall((Expr.Call) returnStmt.value);
+        }
+
         Object value = returnStmt.value == null
                    ? null
                    : evaluate(returnStmt.value);
-        throw new Return(value);
+        returnValue = value;
+        return Completion.RETURN;
+    }
+
+    /**
+     * Runs 'return f(...)' without growing the Java stack: the arguments are evaluated and bound to
+     * f's frame here, and the call itself is left to the trampoline in the caller's
+     * {@link LoxFunction}. Natives and classes are called straight away, as they cannot recurse
+     * back into a tail call of their own.
+     **/
+    private Completion tailCall(Expr.Call call) {
+        LoxCallable callable;
+        LoxInstance receiver = null;
+        if (call.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get) call.callee;
+            Object object = evaluate(get.object);
+            if (!(object instanceof LoxInstance)) {
+                throw new RuntimeError(get.name, "Only instances can have properties.");
+            }
+            receiver = (LoxInstance) object;
+            callable = checkCallable(receiver.getCallee(get.name, get.cache), call.paren);
+        } else if (call.callee instanceof Expr.Super) {
+            Expr.Super superExpr = (Expr.Super) call.callee;
+            callable = findSuperMethod(superExpr);
+            receiver = (LoxInstance) lookUp(superExpr.thisDepth, superExpr.thisSlot);
+        } else {
+            callable = checkCallable(evaluate(call.callee), call.paren);
+        }
+
+        if (!(callable instanceof LoxFunction)) {
+            returnValue = callWithArguments(call, callable, receiver);
+            return Completion.RETURN;
+        }
+
+        List<Expr> args = call.arguments;
+        Object[] arguments = new Object[args.size()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = evaluate(args.get(i));
+        }
+        return bindTailCall(call, (LoxFunction) callable, receiver, arguments);
+    }
+
+    /** Leaves the evaluated tail call to the trampoline, which compiled code does too **/
+    Completion bindTailCall(Expr.Call call, LoxFunction callee, LoxInstance receiver, Object[] arguments) {
+        checkArity(call, callee, arguments.length);
+
+        tailCallee = callee;
+        // the caller is done with its frame, so the callee takes it over
+        tailCallee.bindTailFrame(this, receiver, arguments);
+        return Completion.TAIL_CALL;
     }
 
     @Override
-    public Void visitVarStmt(Stmt.Var varStmt) {
+    public Completion visitVarStmt(Stmt.Var varStmt) {
         Object value = null;
         if (varStmt.initializer != null) {
             value = evaluate(varStmt.initializer);
         }
 
-        environment.define(varStmt.name.lexeme, value);
-        return null;
+        define(varStmt.name, varStmt.slot, varStmt.captured, value);
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitClassStmt(Stmt.Class classStmt) {
-        environment.define(classStmt.name.lexeme, null);
+    public Completion visitClassStmt(Stmt.Class classStmt) {
+        define(classStmt.name, classStmt.slot, classStmt.captured, null);
 
         // process superclass
         LoxClass superclass = null;
@@ -263,8 +546,9 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
         // environment for 'super' keyword binding
         if (superclass != null) {
-            environment = new Environment(environment);
-            environment.define("super", superclass);
+            environment = new Environment(environment, 1);
+            if (stats != null) stats.environments.increment();
+            environment.define(0, superclass);
         }
 
         // process methods
@@ -280,79 +564,158 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             // jump out of 'super' environment
             environment = environment.enclosing;
         }
-        environment.assign(classStmt.name, klass);
 
-        return null;
+        if (classStmt.slot == -1) {
+            GLOBALS.assign(classStmt.name, klass);
+        } else {
+            define(classStmt.name, classStmt.slot, classStmt.captured, klass);
+        }
+
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitFunctionStmt(Stmt.Function functionStmt) {
+    public Completion visitFunctionStmt(Stmt.Function functionStmt) {
         LoxFunction function = new LoxFunction(functionStmt, environment);
-        environment.define(functionStmt.name.lexeme, function);
-        return null;
+        define(functionStmt.name, functionStmt.slot, functionStmt.captured, function);
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitBlockStmt(Stmt.Block blockStmt) {
-        executeBlock(blockStmt.statements, new Environment(environment));
-        return null;
+    public Completion visitBlockStmt(Stmt.Block blockStmt) {
+        // only top-level code can outgrow its frame, calls get frames big enough for all their blocks
+        if (blockStmt.frameSize > frame.length) {
+            frame = Arrays.copyOf(frame, blockStmt.frameSize);
+            frames[callDepth] = frame;
+        }
+
+        // a block whose variables are not captured keeps them all in the frame
+        if (blockStmt.slotCount == 0) {
+            return executeBlock(blockStmt.statements, environment);
+        }
+        if (stats != null) stats.environments.increment();
+        return executeBlock(blockStmt.statements, new Environment(environment, blockStmt.slotCount));
     }
 
-    void executeBlock(List<Stmt> statements, Environment environment) {
+    Completion executeBlock(List<Stmt> statements, Environment environment) {
         // retain a copy of the outer environment to restore after the block
         Environment original = this.environment;
-
-        try {
-            // statements within a block are interpreted in a new local env
-            this.environment = environment;
-            interpret(statements);
-        } finally {
-            this.environment = original;
+        // statements within a block are interpreted in a new local env
+        this.environment = environment;
+
+        // runtime errors propagate up to interpret(), which aborts the whole program and resets
+        // the environment, so only normal completions, returns and tail calls restore it here
+        for (int i = 0, size = statements.size(); i < size; i++) {
+            Completion completion = execute(statements.get(i));
+            if (completion != Completion.NORMAL) {
+                this.environment = original;
+                return completion;
+            }
         }
+
+        this.environment = original;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitIfStmt(Stmt.If ifStmt) {
+    public Completion visitIfStmt(Stmt.If ifStmt) {
         boolean condition = isTruthy(evaluate(ifStmt.condition));
         if (condition) {
-            execute(ifStmt.thenBranch);
+            return execute(ifStmt.thenBranch);
         } else if (ifStmt.elseBranch != null) {
-            execute(ifStmt.elseBranch);
+            return execute(ifStmt.elseBranch);
         }
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitWhileStmt(Stmt.While whileStmt) {
+    public Completion visitWhileStmt(Stmt.While whileStmt) {
         while (isTruthy(evaluate(whileStmt.condition))) {
-            execute(whileStmt.body);
+            Completion completion = execute(whileStmt.body);
+            if (completion != Completion.NORMAL) {
+                return completion;
+            }
         }
-        return null;
+        return Completion.NORMAL;
     }
 
     public void interpret(List<Stmt> statements) {
+        if (profiler != null) profiler.begin();
         try {
             for (Stmt stmt : statements) {
                 execute(stmt);
             }
         } catch (RuntimeError error) {
-            Lox.runtimeError(error);
+            environment = GLOBALS;
+            callDepth = 0;
+            frame = frames[0];
+            if (profiler != null) profiler.reset();
+            lox.runtimeError(error);
+        } finally {
+            if (profiler != null) profiler.end();
         }
     }
 
-    private void execute(Stmt stmt) {
-        stmt.accept(this);
+    Completion execute(Stmt stmt) {
+        if (profiler != null) profiler.at(stmt);
+        if (stats != null) stats.statements.increment();
+        return stmt.accept(this);
     }
 
-    private Object evaluate(Expr expr) {
+    Object evaluate(Expr expr) {
         return expr.accept(this);
     }
 
-    public void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
+    /** Declarations the resolver left without a slot are globals **/
+    private void define(Token name, int slot, boolean captured, Object value) {
+        if (slot == -1) {
+            GLOBALS.define(name.lexeme, value);
+        } else if (captured) {
+            environment.define(slot, value);
+        } else {
+            frame[slot] = value;
+        }
+    }
+
+    // ------------- START FRAMES ------------- //
+    /**
+     * Makes the frame of a call one level deeper than the current one the current frame, with
+     * room for at least size locals. Frames are reused by later calls at the same depth, so calls
+     * only allocate one the first time they reach a new depth.
+     **/
+    Object[] pushFrame(int size) {
+        callDepth++;
+        if (callDepth == frames.length) {
+            frames = Arrays.copyOf(frames, callDepth * 2);
+        }
+
+        Object[] local = frames[callDepth];
+        if (local == null || local.length < size) {
+            local = new Object[size];
+            frames[callDepth] = local;
+        }
+        frame = local;
+        return local;
+    }
+
+    /** Hands the current frame over to a tail call, with room for at least size locals **/
+    Object[] reuseFrame(int size) {
+        if (frame.length < size) {
+            // the caller's locals are not needed anymore
+            frame = new Object[size];
+            frames[callDepth] = frame;
+        }
+        return frame;
+    }
+
+    /** Goes back to the caller's frame, clearing the locals so they can be garbage collected **/
+    void popFrame(int size) {
+        Arrays.fill(frame, 0, size, null);
+        frame = frames[--callDepth];
     }
+    // ------------- END FRAMES ------------- //
 
-    private String stringify(Object obj) {
+    static String stringify(Object obj) {
         if (obj == null) return "nil";
 
         if (obj instanceof Double) {
@@ -366,24 +729,25 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return obj.toString();
     }
 
-    private boolean isTruthy(Object value) {
+    static boolean isTruthy(Object value) {
         if (value == null) return false;
         if (value instanceof Boolean) return (boolean) value;
         return true;
     }
 
-    private boolean isEqual(Object o1, Object o2) {
+    static boolean isEqual(Object o1, Object o2) {
         if (o1 == null && o2 == null) return true;
         if (o1 == null) return false;
-        return o1.equals(o2);
+        // strings are compared by their characters, however they were built
+        return Rope.flatten(o1).equals(Rope.flatten(o2));
     }
 
-    private void checkNumberOperand(Token operator, Object operand) {
+    static void checkNumberOperand(Token operator, Object operand) {
         if (operand instanceof Double) return;
         throw new RuntimeError(operator, "Operand must be a number.");
     }
 
-    private void checkNumberOperands(Token operator, Object operand1, Object operand2) {
+    static void checkNumberOperands(Token operator, Object operand1, Object operand2) {
         if (operand1 instanceof Double && operand2 instanceof Double) return;
         throw new RuntimeError(operator, "Operands must be a number.");
     }
@@ -0,0 +1,497 @@
+package lox;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.List;
+
+import static lox.ClassFile.Code.*;
+
+/**
+ * Translates the body of a hot Lox function into a JVM class, loaded as a hidden class so that
+ * HotSpot can optimize it like any other Java code.
+ *
+ * The generated code keeps variables in the same frame and environments as the tree-walker and calls
+ * into {@link JitRuntime} for every operation, so it behaves exactly like the interpreter.
+ * Statements the jit has no translation for, such as nested function and class declarations,
+ * are handed back to the tree-walker. Bodies that cannot be compiled at all are left to the
+ * tree-walker.
+ */
+class Jit implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    /** How many calls a function takes before its body gets compiled **/
+    static final int THRESHOLD = Integer.getInteger("lox.jit.threshold", 1000);
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private static final String CLASS_NAME = "lox/JitBody";
+    private static final String OBJECT = "java/lang/Object";
+    private static final String INTERPRETER = "lox/Interpreter";
+    private static final String ENVIRONMENT = "lox/Environment";
+    private static final String RUNTIME = "lox/JitRuntime";
+    private static final String GET = "lox/Expr$Get";
+    private static final String CALL = "lox/Expr$Call";
+    private static final String VARIABLE = "lox/Expr$Variable";
+    private static final String ASSIGN = "lox/Expr$Assign";
+    private static final String TOKEN = "Llox/Token;";
+    private static final String OBJECT_TYPE = "Ljava/lang/Object;";
+
+    /** Thrown while translating a body that cannot be compiled **/
+    static class Bailout extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Bailout(String reason) {
+            super(reason, null, false, false);
+        }
+    }
+
+    private final ClassFile classFile = new ClassFile(CLASS_NAME, OBJECT, "lox/JitCode");
+    private final ClassFile.Code code = new ClassFile.Code();
+    private final List<Object> constants = new ArrayList<>();
+    private final int constantsField;
+    // JVM local holding the function's frame
+    private static final int FRAME_LOCAL = 2;
+    // JVM local holding the environment of the innermost block being compiled
+    private int environmentLocal = 3;
+
+    private Jit() {
+        constantsField = classFile.fieldRef(CLASS_NAME, "constants", "[" + OBJECT_TYPE);
+    }
+
+    /** Returns the compiled body, or null if the function has to stay on the tree-walker **/
+    static JitCode compile(Stmt.Function function) {
+        try {
+            Jit jit = new Jit();
+            byte[] bytes = jit.translate(function);
+            Class<?> body = LOOKUP.defineHiddenClass(bytes, true).lookupClass();
+            return (JitCode) body.getConstructor(Object[].class)
+                                .newInstance((Object) jit.constants.toArray());
+        } catch (Bailout | ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    private byte[] translate(Stmt.Function function) {
+        classFile.addField(ClassFile.ACC_FINAL, "constants", "[" + OBJECT_TYPE);
+
+        // constructor storing the constants the body refers to
+        ClassFile.Code constructor = new ClassFile.Code();
+        constructor.op(ALOAD, 0, 1);
+        constructor.op(INVOKESPECIAL, classFile.methodRef(OBJECT, "<init>", "()V"), -1);
+        constructor.op(ALOAD, 0, 1);
+        constructor.op(ALOAD, 1, 1);
+        constructor.op(PUTFIELD, constantsField, -2);
+        constructor.op(RETURN, 0);
+        classFile.addMethod(ClassFile.ACC_PUBLIC, "<init>", "([" + OBJECT_TYPE + ")V", constructor);
+
+        // locals: 0 is this, 1 the interpreter, 2 the function's frame and 3 its environment
+        code.maxLocals = 4;
+        for (Stmt stmt : function.body) {
+            compile(stmt);
+        }
+        code.op(ACONST_NULL, 1);
+        code.op(ARETURN, -1);
+        classFile.addMethod(ClassFile.ACC_PUBLIC, "call",
+                            "(L" + INTERPRETER + ";[" + OBJECT_TYPE + "L" + ENVIRONMENT + ";)" + OBJECT_TYPE,
+                            code);
+
+        return classFile.toByteArray();
+    }
+
+    // ------------- START EMIT HELPERS ------------- //
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    private void loadConstant(Object value, String type) {
+        int index = constants.indexOf(value);
+        if (index == -1) {
+            index = constants.size();
+            constants.add(value);
+        }
+
+        code.op(ALOAD, 0, 1);
+        code.op(GETFIELD, constantsField, 0);
+        code.pushInt(index);
+        code.op(AALOAD, -1);
+        if (type != null) {
+            code.op(CHECKCAST, classFile.classRef(type), 0);
+        }
+    }
+
+    private void loadToken(Token token) {
+        loadConstant(token, "lox/Token");
+    }
+
+    /** Pushes the frame, or the slots array of the environment the given number of scopes out **/
+    private void loadSlots(int depth) {
+        if (depth == Resolver.FRAME) {
+            code.op(ALOAD, FRAME_LOCAL, 1);
+            return;
+        }
+
+        code.op(ALOAD, environmentLocal, 1);
+        for (int i = 0; i < depth; i++) {
+            code.op(GETFIELD, classFile.fieldRef(ENVIRONMENT, "enclosing", "L" + ENVIRONMENT + ";"), 0);
+        }
+        code.op(GETFIELD, classFile.fieldRef(ENVIRONMENT, "slots", "[" + OBJECT_TYPE), 0);
+    }
+
+    private void invokeRuntime(String name, String descriptor, int stackEffect) {
+        code.op(INVOKESTATIC, classFile.methodRef(RUNTIME, name, descriptor), stackEffect);
+    }
+
+    private void binaryOperator(String name, Token operator) {
+        loadToken(operator);
+        invokeRuntime(name, "(" + OBJECT_TYPE + OBJECT_TYPE + TOKEN + ")" + OBJECT_TYPE, -2);
+    }
+
+    private void truthiness() {
+        invokeRuntime("isTruthy", "(" + OBJECT_TYPE + ")Z", 0);
+    }
+    // ------------- END EMIT HELPERS ------------- //
+
+    // ------------- START EXPRESSION TRANSLATORS ------------- //
+    @Override
+    public Void visitBinaryExpr(Expr.Binary binary) {
+        compile(binary.left);
+        compile(binary.right);
+
+        switch (binary.operator.type) {
+        case PLUS: binaryOperator("add", binary.operator); break;
+        case MINUS: binaryOperator("subtract", binary.operator); break;
+        case STAR: binaryOperator("multiply", binary.operator); break;
+        case SLASH: binaryOperator("divide", binary.operator); break;
+        case GREATER: binaryOperator("greater", binary.operator); break;
+        case GREATER_EQUAL: binaryOperator("greaterEqual", binary.operator); break;
+        case LESS: binaryOperator("less", binary.operator); break;
+        case LESS_EQUAL: binaryOperator("lessEqual", binary.operator); break;
+        case EQUAL_EQUAL:
+            invokeRuntime("equal", "(" + OBJECT_TYPE + OBJECT_TYPE + ")" + OBJECT_TYPE, -1);
+            break;
+        case BANG_EQUAL:
+            invokeRuntime("notEqual", "(" + OBJECT_TYPE + OBJECT_TYPE + ")" + OBJECT_TYPE, -1);
+            break;
+        default:
+            throw new Bailout("unknown operator " + binary.operator.type);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call call) {
+        compileCallee(call);
+
+        String prefix = "(L" + INTERPRETER + ";L" + CALL + ";Llox/LoxInstance;Llox/LoxCallable;";
+        int argc = call.arguments.size();
+        if (argc > LoxCallable.MAX_FIXED_ARITY) {
+            compileArguments(call);
+            invokeRuntime("invoke", prefix + "[" + OBJECT_TYPE + ")" + OBJECT_TYPE, -4);
+            return null;
+        }
+
+        // pass the arguments directly, padding the unused ones with null
+        for (Expr argument : call.arguments) {
+            compile(argument);
+        }
+        for (int i = argc; i < LoxCallable.MAX_FIXED_ARITY; i++) {
+            code.op(ACONST_NULL, 1);
+        }
+        invokeRuntime("callFixed", prefix + OBJECT_TYPE + OBJECT_TYPE + OBJECT_TYPE + OBJECT_TYPE + ")" +
+                                   OBJECT_TYPE, -7);
+        return null;
+    }
+
+    /** Pushes the interpreter, the call node, the receiver (or null) and the checked callee **/
+    private void compileCallee(Expr.Call call) {
+        code.op(ALOAD, 1, 1);
+        // the node carries the arity check cache for this site
+        loadConstant(call, CALL);
+
+        if (call.callee instanceof Expr.Get) {
+            // method calls pass the instance on as the receiver instead of binding the method
+            Expr.Get get = (Expr.Get) call.callee;
+            compile(get.object);
+            loadToken(get.name);
+            invokeRuntime("checkInstance", "(" + OBJECT_TYPE + TOKEN + ")Llox/LoxInstance;", -1);
+            code.op(DUP, 1);
+            loadConstant(get, GET);
+            loadToken(call.paren);
+            invokeRuntime("getCallee", "(Llox/LoxInstance;L" + GET + ";" + TOKEN + ")Llox/LoxCallable;", -2);
+        } else {
+            code.op(ACONST_NULL, 1);
+            compile(call.callee);
+            // the callee is checked before any argument is evaluated, like the tree-walker does
+            loadToken(call.paren);
+            invokeRuntime("checkCallable", "(" + OBJECT_TYPE + TOKEN + ")Llox/LoxCallable;", -1);
+        }
+    }
+
+    /** Pushes an array holding the evaluated arguments of a call **/
+    private void compileArguments(Expr.Call call) {
+        code.pushInt(call.arguments.size());
+        code.op(ANEWARRAY, classFile.classRef(OBJECT), 0);
+        for (int i = 0; i < call.arguments.size(); i++) {
+            code.op(DUP, 1);
+            code.pushInt(i);
+            compile(call.arguments.get(i));
+            code.op(AASTORE, -3);
+        }
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get get) {
+        code.op(ALOAD, 1, 1);
+        compile(get.object);
+        // the node carries the inline cache for this site
+        loadConstant(get, GET);
+        invokeRuntime("get", "(L" + INTERPRETER + ";" + OBJECT_TYPE + "L" + GET + ";)" + OBJECT_TYPE, -2);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set set) {
+        compile(set.object);
+        loadToken(set.name);
+        invokeRuntime("checkInstance", "(" + OBJECT_TYPE + TOKEN + ")Llox/LoxInstance;", -1);
+        loadToken(set.name);
+        compile(set.value);
+        invokeRuntime("set", "(Llox/LoxInstance;" + TOKEN + OBJECT_TYPE + ")" + OBJECT_TYPE, -2);
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super superExpr) {
+        // rare enough to leave to the tree-walker
+        code.op(ALOAD, 1, 1);
+        code.op(ALOAD, environmentLocal, 1);
+        loadConstant(superExpr, "lox/Expr");
+        invokeRuntime("evaluate", "(L" + INTERPRETER + ";L" + ENVIRONMENT + ";Llox/Expr;)" + OBJECT_TYPE,
+                      -2);
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This thisExpr) {
+        loadSlots(thisExpr.depth);
+        code.pushInt(thisExpr.slot);
+        code.op(AALOAD, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping grouping) {
+        compile(grouping.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal literal) {
+        if (literal.value == null) {
+            code.op(ACONST_NULL, 1);
+        } else if (literal.value instanceof Boolean) {
+            String name = (Boolean) literal.value ? "TRUE" : "FALSE";
+            code.op(GETSTATIC, classFile.fieldRef("java/lang/Boolean", name, "Ljava/lang/Boolean;"), 1);
+        } else {
+            loadConstant(literal.value, null);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary unary) {
+        compile(unary.right);
+        if (unary.operator.type == TokenType.BANG) {
+            invokeRuntime("not", "(" + OBJECT_TYPE + ")" + OBJECT_TYPE, 0);
+        } else {
+            loadToken(unary.operator);
+            invokeRuntime("negate", "(" + OBJECT_TYPE + TOKEN + ")" + OBJECT_TYPE, -1);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable variable) {
+        if (variable.depth == -1) {
+            // the node caches the global's cell
+            code.op(ALOAD, 1, 1);
+            loadConstant(variable, VARIABLE);
+            code.op(INVOKEVIRTUAL, classFile.methodRef(INTERPRETER, "getGlobal",
+                    "(L" + VARIABLE + ";)" + OBJECT_TYPE), -1);
+            return null;
+        }
+
+        loadSlots(variable.depth);
+        code.pushInt(variable.slot);
+        code.op(AALOAD, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign assign) {
+        if (assign.depth == -1) {
+            code.op(ALOAD, 1, 1);
+            loadConstant(assign, ASSIGN);
+            compile(assign.value);
+            // keep a copy of the value as the result of the assignment
+            code.op(DUP_X2, 1);
+            code.op(INVOKEVIRTUAL, classFile.methodRef(INTERPRETER, "assignGlobal",
+                    "(L" + ASSIGN + ";" + OBJECT_TYPE + ")V"), -3);
+            return null;
+        }
+
+        loadSlots(assign.depth);
+        code.pushInt(assign.slot);
+        compile(assign.value);
+        code.op(DUP_X2, 1);
+        code.op(AASTORE, -3);
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical logical) {
+        compile(logical.left);
+
+        // the left operand is the result if it short-circuits, otherwise it is discarded
+        code.op(DUP, 1);
+        truthiness();
+        int end = code.jump(logical.operator.type == TokenType.OR ? IFNE : IFEQ, -1);
+        code.op(POP, -1);
+        compile(logical.right);
+        code.bind(end);
+        return null;
+    }
+    // ------------- END EXPRESSION TRANSLATORS ------------- //
+
+    // ------------- START STATEMENT TRANSLATORS ------------- //
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression expressionStmt) {
+        compile(expressionStmt.expression);
+        code.op(POP, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print printStmt) {
+        code.op(ALOAD, 1, 1);
+        compile(printStmt.expression);
+        invokeRuntime("print", "(L" + INTERPRETER + ";" + OBJECT_TYPE + ")V", -2);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var varStmt) {
+        if (varStmt.slot == -1) {
+            // globals are never declared inside a function body, but stay on the safe side
+            fallBack(varStmt);
+            return null;
+        }
+
+        loadSlots(varStmt.captured ? 0 : Resolver.FRAME);
+        code.pushInt(varStmt.slot);
+        if (varStmt.initializer != null) {
+            compile(varStmt.initializer);
+        } else {
+            code.op(ACONST_NULL, 1);
+        }
+        code.op(AASTORE, -3);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return returnStmt) {
+        if (returnStmt.tailCall) {
+            // binds the callee's frame and returns TAIL_CALL for the trampoline in LoxFunction
+            Expr.Call call = (Expr.Call) returnStmt.value;
+            compileCallee(call);
+            compileArguments(call);
+            invokeRuntime("tailCall", "(L" + INTERPRETER + ";L" + CALL + ";Llox/LoxInstance;Llox/LoxCallable;[" +
+                                      OBJECT_TYPE + ")" + OBJECT_TYPE, -4);
+        } else if (returnStmt.value != null) {
+            compile(returnStmt.value);
+        } else {
+            code.op(ACONST_NULL, 1);
+        }
+        code.op(ARETURN, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function functionStmt) {
+        fallBack(functionStmt);
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class classStmt) {
+        fallBack(classStmt);
+        return null;
+    }
+
+    private void fallBack(Stmt stmt) {
+        code.op(ALOAD, 1, 1);
+        code.op(ALOAD, environmentLocal, 1);
+        loadConstant(stmt, "lox/Stmt");
+        invokeRuntime("execute", "(L" + INTERPRETER + ";L" + ENVIRONMENT + ";Llox/Stmt;)V", -3);
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block blockStmt) {
+        // a block without captured variables has them all in the function's frame
+        if (blockStmt.slotCount == 0) {
+            for (Stmt stmt : blockStmt.statements) {
+                compile(stmt);
+            }
+            return null;
+        }
+
+        // each nested block keeps its environment in its own JVM local
+        code.op(ALOAD, 1, 1);
+        code.op(ALOAD, environmentLocal, 1);
+        code.pushInt(blockStmt.slotCount);
+        invokeRuntime("environment", "(L" + INTERPRETER + ";L" + ENVIRONMENT + ";I)L" + ENVIRONMENT + ";", -2);
+
+        int enclosingLocal = environmentLocal;
+        environmentLocal++;
+        code.op(ASTORE, environmentLocal, -1);
+        for (Stmt stmt : blockStmt.statements) {
+            compile(stmt);
+        }
+        environmentLocal = enclosingLocal;
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If ifStmt) {
+        compile(ifStmt.condition);
+        truthiness();
+        int elseBranch = code.jump(IFEQ, -1);
+        compile(ifStmt.thenBranch);
+
+        if (ifStmt.elseBranch == null) {
+            code.bind(elseBranch);
+            return null;
+        }
+
+        int end = code.jump(GOTO, 0);
+        code.bind(elseBranch);
+        compile(ifStmt.elseBranch);
+        code.bind(end);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While whileStmt) {
+        int loopStart = code.length;
+        compile(whileStmt.condition);
+        truthiness();
+        int exit = code.jump(IFEQ, -1);
+        compile(whileStmt.body);
+        code.jumpBack(GOTO, loopStart, 0);
+        code.bind(exit);
+        return null;
+    }
+    // ------------- END STATEMENT TRANSLATORS ------------- //
+}
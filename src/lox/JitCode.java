@@ -0,0 +1,11 @@
+package lox;
+
+/** A function body compiled to a JVM class by the {@link Jit} **/
+interface JitCode {
+    /**
+     * Runs the body in the function's frame, with the parameters already bound, and its environment.
+     *
+     * @return The returned value, or null if the body finished without a return statement.
+     */
+    Object call(Interpreter interpreter, Object[] frame, Environment environment);
+}
@@ -0,0 +1,168 @@
+package lox;
+
+import java.util.Arrays;
+
+/**
+ * Static helpers called from code generated by the {@link Jit}. They implement the same checks
+ * and error messages as the tree-walking {@link Interpreter}.
+ */
+final class JitRuntime {
+    private JitRuntime() {}
+
+    // ------------- START OPERATORS ------------- //
+    static Object add(Object left, Object right, Token operator) {
+        if (left instanceof Double && right instanceof Double) {
+            return DoubleCache.valueOf((double) left + (double) right);
+        }
+        if (Rope.isString(left) && Rope.isString(right)) {
+            return Rope.concat(left, right);
+        }
+
+        throw new RuntimeError(operator, "Operands must be either numbers or strings.");
+    }
+
+    static Object subtract(Object left, Object right, Token operator) {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return DoubleCache.valueOf((double) left - (double) right);
+    }
+
+    static Object multiply(Object left, Object right, Token operator) {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return DoubleCache.valueOf((double) left * (double) right);
+    }
+
+    static Object divide(Object left, Object right, Token operator) {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return DoubleCache.valueOf((double) left / (double) right);
+    }
+
+    static Object greater(Object left, Object right, Token operator) {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return (double) left > (double) right;
+    }
+
+    static Object greaterEqual(Object left, Object right, Token operator) {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return (double) left >= (double) right;
+    }
+
+    static Object less(Object left, Object right, Token operator) {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return (double) left < (double) right;
+    }
+
+    static Object lessEqual(Object left, Object right, Token operator) {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return (double) left <= (double) right;
+    }
+
+    static Object equal(Object left, Object right) {
+        return Interpreter.isEqual(left, right);
+    }
+
+    static Object notEqual(Object left, Object right) {
+        return !Interpreter.isEqual(left, right);
+    }
+
+    static Object not(Object right) {
+        return !Interpreter.isTruthy(right);
+    }
+
+    static Object negate(Object right, Token operator) {
+        Interpreter.checkNumberOperand(operator, right);
+        return DoubleCache.valueOf(-(double) right);
+    }
+
+    static boolean isTruthy(Object value) {
+        return Interpreter.isTruthy(value);
+    }
+    // ------------- END OPERATORS ------------- //
+
+    // ------------- START CALLS AND PROPERTIES ------------- //
+    static LoxCallable checkCallable(Object callee, Token paren) {
+        return Interpreter.checkCallable(callee, paren);
+    }
+
+    /** Looks up a method about to be called on the instance, leaving it unbound **/
+    static LoxCallable getCallee(LoxInstance instance, Expr.Get get, Token paren) {
+        return Interpreter.checkCallable(instance.getCallee(get.name, get.cache), paren);
+    }
+
+    /** Calls with more arguments than the fixed arity entry points take **/
+    static Object invoke(Interpreter interpreter, Expr.Call call, LoxInstance receiver, LoxCallable callable,
+                         Object[] arguments) {
+        Interpreter.checkArity(call, callable, arguments.length);
+        return interpreter.invoke(callable, receiver, Arrays.asList(arguments));
+    }
+
+    /**
+     * Runs 'return f(...)' in compiled code like {@link Interpreter#tailCall} does, returning
+     * {@link Completion#TAIL_CALL} for the trampoline when f is a Lox function
+     **/
+    static Object tailCall(Interpreter interpreter, Expr.Call call, LoxInstance receiver, LoxCallable callable,
+                           Object[] arguments) {
+        if (!(callable instanceof LoxFunction)) {
+            return invoke(interpreter, call, receiver, callable, arguments);
+        }
+        return interpreter.bindTailCall(call, (LoxFunction) callable, receiver, arguments);
+    }
+
+    static Object callFixed(Interpreter interpreter, Expr.Call call, LoxInstance receiver, LoxCallable callable,
+                            Object a0, Object a1, Object a2, Object a3) {
+        return interpreter.callFixed(call, receiver, callable, a0, a1, a2, a3);
+    }
+
+    static Object get(Interpreter interpreter, Object object, Expr.Get get) {
+        if (!(object instanceof LoxInstance)) {
+            throw new RuntimeError(get.name, "Only instances can have properties.");
+        }
+        return ((LoxInstance) object).get(interpreter, get.name, get.cache);
+    }
+
+    static LoxInstance checkInstance(Object object, Token name) {
+        if (!(object instanceof LoxInstance)) {
+            throw new RuntimeError(name, "Only instances can have properties.");
+        }
+        return (LoxInstance) object;
+    }
+
+    static Object set(LoxInstance instance, Token name, Object value) {
+        instance.set(name, value);
+        return value;
+    }
+
+    static void print(Interpreter interpreter, Object value) {
+        interpreter.lox.out.println(Interpreter.stringify(value));
+    }
+
+    /** Makes the environment of a block with captured variables, counted as the tree-walker does **/
+    static Environment environment(Interpreter interpreter, Environment enclosing, int slotCount) {
+        if (interpreter.stats != null) interpreter.stats.environments.increment();
+        return new Environment(enclosing, slotCount);
+    }
+    // ------------- END CALLS AND PROPERTIES ------------- //
+
+    // ------------- START FALLBACKS ------------- //
+    /** Runs a statement the jit does not compile on the tree-walker, in the given environment **/
+    static void execute(Interpreter interpreter, Environment environment, Stmt stmt) {
+        Environment original = interpreter.environment;
+        try {
+            interpreter.environment = environment;
+            interpreter.execute(stmt);
+        } finally {
+            interpreter.environment = original;
+        }
+    }
+
+    /** Evaluates an expression the jit does not compile on the tree-walker **/
+    static Object evaluate(Interpreter interpreter, Environment environment, Expr expr) {
+        Environment original = interpreter.environment;
+        try {
+            interpreter.environment = environment;
+            return interpreter.evaluate(expr);
+        } finally {
+            interpreter.environment = original;
+        }
+    }
+    // ------------- END FALLBACKS ------------- //
+}
@@ -2,47 +2,177 @@ package lox;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 
+/**
+ * One run of jlox: the interpreter, the options it was started with and whether it has failed.
+ * Every part of the pipeline reports its errors to the run it belongs to, so that any number of
+ * runs can go on side by side in one JVM, see {@link Batch}.
+ */
 public class Lox {
-    static Interpreter interpreter = new Interpreter();
+    // where the program's output and the error reports go
+    final PrintStream out;
+    final PrintStream err;
+    final Interpreter interpreter;
+    // bytecode VM, only created when selected with --engine=vm
+    VM vm = null;
+    // whether resolved trees go through the Optimizer, turned off with --no-optimize
+    boolean optimizing = true;
+    // whether the tree that is about to run gets printed first, with --print-ast
+    boolean printingAst = false;
+    // whether scripts run declaration by declaration as they are read, with --stream
+    boolean streaming = false;
+    // where resolved trees of scripts are kept between runs, with --cache
+    TreeCache cache = null;
     // initialize flag to keep track of error handling
-    static boolean hadError = false;
-    static boolean hadRuntimeError = false;
+    boolean hadError = false;
+    boolean hadRuntimeError = false;
+
+    Lox() {
+        this(System.out, System.err);
+    }
+
+    Lox(PrintStream out, PrintStream err) {
+        this.out = out;
+        this.err = err;
+        this.interpreter = new Interpreter(this);
+    }
 
     public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
+        Lox lox = new Lox();
+        // options come before the script path, and are handed on to every script of a batch
+        List<String> options = new ArrayList<>();
+        List<String> paths = new ArrayList<>();
+        boolean batch = false;
+        for (String arg : args) {
+            if (arg.equals("--batch")) {
+                batch = true;
+            } else if (arg.startsWith("--")) {
+                if (!lox.option(arg)) {
+                    System.out.println("Unknown option: " + arg);
+                    System.exit(64);
+                }
+                options.add(arg);
+            } else {
+                paths.add(arg);
+            }
+        }
+
+        if (paths.size() > 1) {
             System.out.println("jlox only accepts 0 or 1 arguments");
             System.exit(64);
-        } else if (args.length == 1) {
-            // attempt to run the file passed
-            runFile(args[0]);
+        } else if (batch) {
+            if (paths.isEmpty()) {
+                System.out.println("--batch needs a directory of scripts");
+                System.exit(64);
+            }
+            System.exit(new Batch(options).run(Paths.get(paths.get(0))));
+        } else if (paths.size() == 1) {
+            // attempt to run the file passed, and exit gracefully on errors
+            int status = lox.runFile(Paths.get(paths.get(0)));
+            if (status != 0) {
+                System.exit(status);
+            }
         } else {
             // start REPL
-            runPrompt();
+            lox.runPrompt();
         }
     }
 
-    private static void runFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+    /**
+     * Applies a command line option to this run.
+     *
+     * @return Whether the option exists.
+     */
+    boolean option(String option) {
+        if (option.startsWith("--cache=")) {
+            cache = new TreeCache(Paths.get(option.substring("--cache=".length())));
+            return true;
+        }
+        switch (option) {
+            case "--engine=vm": vm = new VM(this); break;
+            case "--engine=tree": vm = null; break;
+            case "--jit": interpreter.jitEnabled = true; break;
+            case "--specialize": interpreter.specializing = true; break;
+            case "--no-optimize": optimizing = false; break;
+            case "--print-ast": printingAst = true; break;
+            case "--stream": streaming = true; break;
+            case "--cache": cache = new TreeCache(TreeCache.defaultDirectory()); break;
+            case "--profile": interpreter.profiler = new Profiler(); break;
+            case "--stats": interpreter.stats = new Stats(); break;
+            default: return false;
+        }
+        return true;
+    }
+
+    /**
+     * Runs a script file.
+     *
+     * @return The exit status: 65 after a syntax or resolution error, 70 after a runtime error and
+     * 0 otherwise.
+     */
+    int runFile(Path path) throws IOException {
+        Profiler profiler = interpreter.profiler;
+        if (profiler != null) profiler.start();
+        Stats stats = interpreter.stats;
+        if (stats != null) stats.register(path.toString());
+        try {
+            if (streaming) {
+                // closed here, as runStream stops reading at the first runtime error
+                try (Reader reader = Files.newBufferedReader(path, Charset.defaultCharset())) {
+                    runStream(reader);
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+            } else if (cache != null) {
+                runCached(Files.readAllBytes(path));
+            } else {
+                byte[] bytes = Files.readAllBytes(path);
+                run(new String(bytes, Charset.defaultCharset()));
+            }
+        } finally {
+            if (profiler != null) profiler.stop();
+            if (stats != null) stats.unregister();
+        }
+
+        if (profiler != null) {
+            profiler.report(err);
+            // next to the script, so that every script of a batch gets its own
+            Path stacks = Paths.get(path + ".collapsed");
+            try {
+                profiler.writeCollapsed(stacks);
+                err.println("profile: stacks written to " + stacks);
+            } catch (IOException e) {
+                // the script itself ran fine, so this does not change its exit status
+                err.println("profile: could not write stacks to " + stacks + ": " + e);
+            }
+        }
+        if (stats != null) {
+            stats.report(err);
+        }
 
-        // check for error flag and exit gracefully
         if (hadError) {
-            System.exit(65);
+            return 65;
         }
         if (hadRuntimeError) {
-            System.exit(70);
+            return 70;
         }
+        return 0;
     }
 
-    private static void runPrompt() throws IOException {
+    private void runPrompt() throws IOException {
         BufferedReader reader =
                 new BufferedReader(new InputStreamReader((System.in)));
+        Stats stats = interpreter.stats;
+        if (stats != null) stats.register("<prompt>");
 
         while(true) {
             String line = reader.readLine();
@@ -54,36 +184,116 @@ public class Lox {
 
             run(line);
         }
+
+        if (stats != null) {
+            stats.unregister();
+            stats.report(err);
+        }
+    }
+
+    private void run(String code) {
+        List<Stmt> statements = parse(code);
+        if (statements == null) return;
+
+        execute(statements);
+    }
+
+    /**
+     * Runs a script from the tree that was cached for its source, skipping straight to step 4.
+     * Without one, the tree gets cached once it has been resolved without errors.
+     */
+    private void runCached(byte[] source) {
+        hadError = false;
+
+        byte[] key = TreeCache.key(source);
+        List<Stmt> statements = cache.load(key);
+        if (statements == null) {
+            statements = parse(new String(source, Charset.defaultCharset()));
+            if (statements == null) return;
+
+            // STEP 3: RESOLVE
+            new Resolver(this).resolve(statements);
+            if (hadError) return;
+            // before optimizing, which depends on the options of the run
+            cache.store(key, statements);
+        }
+
+        runResolved(statements);
     }
 
-    private static void run(String code) {
+    /** Runs steps 1 and 2, returning null after syntax errors **/
+    private List<Stmt> parse(String code) {
         hadError = false;
 
         // STEP 1: SCAN
-        Scanner scanner = new Scanner(code);
+        Scanner scanner = new Scanner(code, this);
         ArrayList<Token> tokens = scanner.scanTokens();
 
         // STEP 2: PARSE
-        Parser parser = new Parser(tokens);
+        Parser parser = new Parser(tokens, this);
         List<Stmt> statements = parser.parse();
         // check for parse errors
-        if (hadError) return;
+        return hadError ? null : statements;
+    }
+
+    /**
+     * Runs a script as it is read: every top-level declaration is resolved and run as soon as it
+     * has been parsed, so only a small window of the script is ever in memory. Unlike run(), the
+     * declarations before a syntax error have run by the time it is reported. Nothing after it
+     * runs, but the rest is still parsed to report any further syntax errors.
+     */
+    private void runStream(Reader reader) {
+        hadError = false;
 
+        // STEPS 1 AND 2: SCAN AND PARSE, one declaration at a time
+        Parser parser = new Parser(new Scanner(reader, this));
+        while (parser.hasNext()) {
+            Stmt statement = parser.next();
+            if (hadError) continue;
+
+            execute(List.of(statement));
+            // a runtime error aborts the whole script, like it does in run()
+            if (hadRuntimeError) return;
+        }
+    }
+
+    /** Runs the steps after parsing **/
+    private void execute(List<Stmt> statements) {
         // STEP 3: RESOLVE
-        Resolver resolver = new Resolver(interpreter);
+        Resolver resolver = new Resolver(this);
         resolver.resolve(statements);
         // check for resolution errors
         if (hadError) return;
 
-        // STEP 4: INTERPRET
-        interpreter.interpret(statements);
+        runResolved(statements);
+    }
+
+    /** Runs the steps after resolving **/
+    private void runResolved(List<Stmt> statements) {
+        // STEP 4: OPTIMIZE
+        if (optimizing) {
+            statements = new Optimizer().optimize(statements);
+        }
+        if (printingAst) {
+            out.print(new ASTPrinter().print(statements));
+        }
+
+        // STEP 5: INTERPRET
+        if (vm != null) {
+            VM.Function script = new Compiler(this).compile(statements);
+            // check for compile errors
+            if (hadError) return;
+            vm.interpret(script);
+        } else {
+            interpreter.interpret(statements);
+        }
     }
 
-    static void error(int line, String message) {
+    void error(int line, String message) {
        report(line, "", message);
     }
 
-    static void error(Token token, String message) {
+    void error(Token token, String message) {
         if (token.type == TokenType.EOF) {
             report(token.line, " at end", message);
         } else {
@@ -91,13 +301,26 @@ public class Lox {
         }
     }
 
-    static void runtimeError(RuntimeError error) {
-        System.out.println(error.getMessage() + "\n[line " + error.token.line + "]");
+    void runtimeError(RuntimeError error) {
+        runtimeError(error.getMessage(), error.token.line);
+    }
+
+    void runtimeError(String message, int line) {
+        out.println(message + "\n[line " + line + "]");
         hadRuntimeError = true;
+        if (interpreter.stats != null) interpreter.stats.runtimeErrors.increment();
+        if (Events.recording()) {
+            Events.RuntimeError event = new Events.RuntimeError();
+            if (event.isEnabled()) {
+                event.message = message;
+                event.line = line;
+                event.commit();
+            }
+        }
     }
 
-    private static void report(int line, String where, String message) {
-        System.err.println("[line " + line + "] Error" + where + ": " + message);
+    private void report(int line, String where, String message) {
+        err.println("[line " + line + "] Error" + where + ": " + message);
         hadError = true;
     }
 }
@@ -1,8 +1,36 @@
 package lox;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 public interface LoxCallable {
+    /** Calls with up to this many arguments go through call0..call4 instead of building a list **/
+    int MAX_FIXED_ARITY = 4;
+
     Object call(Interpreter interpreter, List<Object> arguments);
     int arity();
+
+    // ------------- START FIXED ARITY CALLS ------------- //
+    // callers check the arity first; callables with a cheaper way to take their arguments override these
+    default Object call0(Interpreter interpreter) {
+        return call(interpreter, Collections.emptyList());
+    }
+
+    default Object call1(Interpreter interpreter, Object a0) {
+        return call(interpreter, Collections.singletonList(a0));
+    }
+
+    default Object call2(Interpreter interpreter, Object a0, Object a1) {
+        return call(interpreter, Arrays.asList(a0, a1));
+    }
+
+    default Object call3(Interpreter interpreter, Object a0, Object a1, Object a2) {
+        return call(interpreter, Arrays.asList(a0, a1, a2));
+    }
+
+    default Object call4(Interpreter interpreter, Object a0, Object a1, Object a2, Object a3) {
+        return call(interpreter, Arrays.asList(a0, a1, a2, a3));
+    }
+    // ------------- END FIXED ARITY CALLS ------------- //
 }
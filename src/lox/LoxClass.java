@@ -9,43 +9,103 @@ public class LoxClass implements LoxCallable {
     final String name;
     final LoxClass superclass;
     Map<String, LoxFunction> methods = new HashMap<>();
+    /** every method an instance responds to, inherited ones included, flattened when the class is created **/
+    private final Map<String, LoxFunction> methodTable;
+    private final LoxFunction initializer;
+    /** the shape new instances start with, see {@link Shape} **/
+    final Shape rootShape = new Shape();
+    /** the most fields any instance has had, used to size the field arrays of new instances **/
+    int fieldCapacity = 0;
 
     LoxClass(String name, LoxClass superclass, Map<String, LoxFunction> methods) {
         this.name = name;
         this.superclass = superclass;
         this.methods = methods;
+
+        // copy the superclass's table down, so finding a method costs the same at any depth
+        this.methodTable = superclass == null
+                ? new HashMap<>()
+                : new HashMap<>(superclass.methodTable);
+        this.methodTable.putAll(methods);
+        this.initializer = methodTable.get(INIT_KEYWORD);
     }
 
     LoxFunction findMethod(String name) {
-        LoxFunction method = methods.get(name);
+        return methodTable.get(name);
+    }
 
-        // try walking up inheritance chain
-        if (method == null && superclass != null) {
-            method = superclass.findMethod(name);
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        LoxInstance instance = construct(interpreter);
+        if (initializer != null) {
+            initializer.call(interpreter, instance, arguments);
         }
 
-        return method;
+        return constructed(interpreter, instance);
     }
 
+    // ------------- START FIXED ARITY CALLS ------------- //
     @Override
-    public Object call(Interpreter interpreter, List<Object> arguments) {
-        LoxInstance instance = new LoxInstance(this);
-        LoxFunction constructor = findMethod(INIT_KEYWORD);
+    public Object call0(Interpreter interpreter) {
+        LoxInstance instance = construct(interpreter);
+        if (initializer != null) initializer.call0(interpreter, instance);
+        return constructed(interpreter, instance);
+    }
 
-        if (constructor != null) {
-            constructor.bind(instance).call(interpreter, arguments);
+    @Override
+    public Object call1(Interpreter interpreter, Object a0) {
+        LoxInstance instance = construct(interpreter);
+        if (initializer != null) initializer.call1(interpreter, instance, a0);
+        return constructed(interpreter, instance);
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a0, Object a1) {
+        LoxInstance instance = construct(interpreter);
+        if (initializer != null) initializer.call2(interpreter, instance, a0, a1);
+        return constructed(interpreter, instance);
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a0, Object a1, Object a2) {
+        LoxInstance instance = construct(interpreter);
+        if (initializer != null) initializer.call3(interpreter, instance, a0, a1, a2);
+        return constructed(interpreter, instance);
+    }
+
+    @Override
+    public Object call4(Interpreter interpreter, Object a0, Object a1, Object a2, Object a3) {
+        LoxInstance instance = construct(interpreter);
+        if (initializer != null) initializer.call4(interpreter, instance, a0, a1, a2, a3);
+        return constructed(interpreter, instance);
+    }
+    // ------------- END FIXED ARITY CALLS ------------- //
+
+    /** Makes a new instance, which the profiler sees being constructed until constructed() **/
+    private LoxInstance construct(Interpreter interpreter) {
+        if (interpreter.profiler != null) interpreter.profiler.enter(this);
+        if (interpreter.stats != null) interpreter.stats.instances.increment();
+        if (Events.recording()) {
+            Events.Instantiate event = new Events.Instantiate();
+            if (event.isEnabled()) {
+                event.className = name;
+                event.commit();
+            }
         }
+        return new LoxInstance(this);
+    }
 
+    private LoxInstance constructed(Interpreter interpreter, LoxInstance instance) {
+        if (interpreter.profiler != null) interpreter.profiler.exit();
         return instance;
     }
 
     @Override
     public int arity() {
-        LoxFunction constructor = findMethod(INIT_KEYWORD);
-        if (constructor == null) {
+        if (initializer == null) {
             return 0;
         }
-        return constructor.arity();
+        return initializer.arity();
     }
 
     @Override
@@ -6,45 +6,237 @@ public class LoxFunction implements LoxCallable {
     private final Stmt.Function declaration;
     private final Environment closure;
     private final boolean isInitializer;
+    /** methods take 'this' in slot 0 of their frame, see {@link #call(Interpreter, LoxInstance, List)} **/
+    private final boolean isMethod;
+    /** the instance a method was bound to, null for functions and unbound methods **/
+    private final LoxInstance boundThis;
+    /** slot of the first param, which comes after 'this' in methods **/
+    private final int firstParam;
 
     LoxFunction(Stmt.Function declaration, Environment closure) {
-        this(declaration, closure, false);
+        this(declaration, closure, false, false, null);
     }
 
+    /** Creates a class's (unbound) method **/
     LoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer) {
+        this(declaration, closure, true, isInitializer, null);
+    }
+
+    private LoxFunction(Stmt.Function declaration, Environment closure, boolean isMethod,
+                        boolean isInitializer, LoxInstance boundThis) {
         this.declaration = declaration;
         this.closure = closure;
+        this.isMethod = isMethod;
         this.isInitializer = isInitializer;
+        this.boundThis = boundThis;
+        this.firstParam = isMethod ? 1 : 0;
     }
 
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
-        Environment local = new Environment(closure);
+        return call(interpreter, boundThis, arguments);
+    }
+
+    /**
+     * Calls the function. An unbound method runs with 'this' set to the receiver, which saves
+     * allocating a bound copy for calls like obj.method(). Functions and bound methods ignore it.
+     **/
+    Object call(Interpreter interpreter, LoxInstance receiver, List<Object> arguments) {
+        Object[] local = frame(interpreter, receiver);
 
         // Note: args and params are guaranteed to be same size due to arity check
         for (int i = 0; i < arguments.size(); i++) {
-            String paramName = declaration.params.get(i).lexeme;
-            Object argument = arguments.get(i);
-            // bind arg to param
-            local.define(paramName, argument);
+            // bind arg to param, params occupy the frame slots after 'this'
+            local[firstParam + i] = arguments.get(i);
         }
+        return run(interpreter, local);
+    }
+
+    // ------------- START FIXED ARITY CALLS ------------- //
+    @Override
+    public Object call0(Interpreter interpreter) {
+        return call0(interpreter, boundThis);
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a0) {
+        return call1(interpreter, boundThis, a0);
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a0, Object a1) {
+        return call2(interpreter, boundThis, a0, a1);
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a0, Object a1, Object a2) {
+        return call3(interpreter, boundThis, a0, a1, a2);
+    }
+
+    @Override
+    public Object call4(Interpreter interpreter, Object a0, Object a1, Object a2, Object a3) {
+        return call4(interpreter, boundThis, a0, a1, a2, a3);
+    }
+
+    Object call0(Interpreter interpreter, LoxInstance receiver) {
+        return run(interpreter, frame(interpreter, receiver));
+    }
+
+    Object call1(Interpreter interpreter, LoxInstance receiver, Object a0) {
+        Object[] local = frame(interpreter, receiver);
+        local[firstParam] = a0;
+        return run(interpreter, local);
+    }
+
+    Object call2(Interpreter interpreter, LoxInstance receiver, Object a0, Object a1) {
+        Object[] local = frame(interpreter, receiver);
+        local[firstParam] = a0;
+        local[firstParam + 1] = a1;
+        return run(interpreter, local);
+    }
 
-        try {
-            interpreter.executeBlock(declaration.body, local);
-        } catch (Return r) {
-            if (!isInitializer) return r.value;
-            // if fxn is an initializer, fall-through and return the instance below
+    Object call3(Interpreter interpreter, LoxInstance receiver, Object a0, Object a1, Object a2) {
+        Object[] local = frame(interpreter, receiver);
+        local[firstParam] = a0;
+        local[firstParam + 1] = a1;
+        local[firstParam + 2] = a2;
+        return run(interpreter, local);
+    }
+
+    Object call4(Interpreter interpreter, LoxInstance receiver, Object a0, Object a1, Object a2,
+                 Object a3) {
+        Object[] local = frame(interpreter, receiver);
+        local[firstParam] = a0;
+        local[firstParam + 1] = a1;
+        local[firstParam + 2] = a2;
+        local[firstParam + 3] = a3;
+        return run(interpreter, local);
+    }
+    // ------------- END FIXED ARITY CALLS ------------- //
+
+    /** Takes the frame for one call, with 'this' already in place for methods **/
+    private Object[] frame(Interpreter interpreter, LoxInstance receiver) {
+        Object[] local = interpreter.pushFrame(declaration.frameSize);
+        if (isMethod) {
+            local[0] = boundThis != null ? boundThis : receiver;
+        }
+        return local;
+    }
+
+    /**
+     * Binds the arguments of a tail call to this function, see {@link Interpreter#tailCall}. The
+     * caller is done with its frame, so the arguments go straight into it and deep recursion
+     * in tail position needs no more frames than a loop.
+     **/
+    void bindTailFrame(Interpreter interpreter, LoxInstance receiver, Object[] arguments) {
+        Object[] local = interpreter.reuseFrame(declaration.frameSize);
+        if (isMethod) {
+            local[0] = boundThis != null ? boundThis : receiver;
         }
+        for (int i = 0; i < arguments.length; i++) {
+            local[firstParam + i] = arguments[i];
+        }
+    }
+
+    /**
+     * The environment the body runs in. Only a function whose own variables are captured by a
+     * closure gets one for each call, with its captured params copied over from the frame.
+     * Others run straight in the environment they closed over.
+     **/
+    private Environment environment(Interpreter interpreter, Object[] local) {
+        if (declaration.slotCount == 0) return closure;
+
+        if (interpreter.stats != null) interpreter.stats.environments.increment();
+        Environment environment = new Environment(closure, declaration.slotCount);
+        int[] paramSlots = declaration.paramSlots;
+        for (int i = 0; i < paramSlots.length; i++) {
+            if (paramSlots[i] != -1) {
+                environment.define(paramSlots[i], local[i]);
+            }
+        }
+        return environment;
+    }
 
-        if (isInitializer) return closure.getAt(0, "this");
-        // default return value if no return stmt is found
-        return null;
+    /**
+     * Runs the body in a frame whose params have been bound. A body ending in a tail call hands
+     * back the callee, which runs in this same loop and frame instead of a nested call.
+     **/
+    private Object run(Interpreter interpreter, Object[] local) {
+        LoxFunction function = this;
+        // how much of the frame the functions run in this loop have used, to be cleared afterwards
+        int frameSize = declaration.frameSize;
+        Profiler profiler = interpreter.profiler;
+        if (profiler != null) profiler.enter(declaration);
+        Stats stats = interpreter.stats;
+        Events.Call event = Events.beginCall();
+        while (true) {
+            if (stats != null) stats.calls.increment();
+            Environment environment = function.environment(interpreter, local);
+
+            Object value;
+            JitCode compiled = function.compiledBody(interpreter);
+            if (compiled != null) {
+                // a compiled tail call hands back TAIL_CALL itself, see JitRuntime#tailCall
+                value = compiled.call(interpreter, local, environment);
+            } else {
+                Completion completion = interpreter.executeBlock(function.declaration.body, environment);
+                // default return value if no return stmt is found
+                value = null;
+                if (completion == Completion.RETURN) {
+                    value = interpreter.returnValue;
+                    interpreter.returnValue = null;
+                } else if (completion == Completion.TAIL_CALL) {
+                    value = completion;
+                }
+            }
+
+            if (value == Completion.TAIL_CALL) {
+                // the caller is done, so its event ends here and the callee gets one of its own
+                function.commit(event);
+                event = Events.beginCall();
+                function = interpreter.tailCallee;
+                interpreter.tailCallee = null;
+                local = interpreter.frame;
+                frameSize = Math.max(frameSize, function.declaration.frameSize);
+                if (profiler != null) profiler.replace(function.declaration);
+                continue;
+            }
+
+            // an initializer returns the instance, even from an early 'return;'
+            if (function.isInitializer) value = local[0];
+
+            interpreter.popFrame(frameSize);
+            if (profiler != null) profiler.exit();
+            function.commit(event);
+            return value;
+        }
+    }
+
+    /** Records a call to this function with JFR, if it is recording calls this long **/
+    private void commit(Events.Call event) {
+        if (event == null) return;
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.function = declaration.name.lexeme;
+            event.line = declaration.name.line;
+            event.commit();
+        }
+    }
+
+    /** Counts calls to the declaration, compiling it once it gets hot **/
+    private JitCode compiledBody(Interpreter interpreter) {
+        if (declaration.jitCode == null && interpreter.jitEnabled &&
+                ++declaration.callCount == Jit.THRESHOLD) {
+            // stays null if the body cannot be compiled, leaving it to the tree-walker
+            declaration.jitCode = Jit.compile(declaration);
+        }
+        return declaration.jitCode;
     }
 
-    public LoxFunction bind(LoxInstance instance) {
-        Environment environment = new Environment(closure);
-        environment.define("this", instance);
-        return new LoxFunction(declaration, environment, isInitializer);
+    public LoxFunction bind(Interpreter interpreter, LoxInstance instance) {
+        if (interpreter.stats != null) interpreter.stats.boundMethods.increment();
+        return new LoxFunction(declaration, closure, true, isInitializer, instance);
     }
 
     @Override
@@ -1,30 +1,81 @@
 package lox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.List;
 
 public class LoxInstance {
+    private static final Object[] NO_FIELDS = new Object[0];
+
     private final LoxClass klass;
-    private final Map<String, Object> fields = new HashMap<>();
+    /** field names map to indices in the field array through the shape, see {@link Shape} **/
+    private Shape shape;
+    private Object[] fields;
 
     LoxInstance(LoxClass klass) {
         this.klass = klass;
+        this.shape = klass.rootShape;
+        // most instances of a class end up with as many fields as the largest one seen so far
+        this.fields = klass.fieldCapacity == 0 ? NO_FIELDS : new Object[klass.fieldCapacity];
     }
 
-    public Object get(Token name) {
-        if (fields.containsKey(name.lexeme)) {
-            return fields.get(name.lexeme);
+    public Object get(Interpreter interpreter, Token name, InlineCache cache) {
+        int entry = lookup(name, cache);
+        int offset = cache.offset(entry);
+        if (offset != -1) {
+            return fields[offset];
         }
 
-        LoxFunction method = klass.findMethod(name.lexeme);
         // when a class method is get-ed, a bound copy is made
-        if (method != null) return method.bind(this);
+        return cache.method(entry).bind(interpreter, this);
+    }
+
+    /**
+     * Looks up a property that is about to be called with this instance as the receiver. Methods
+     * are returned unbound, as {@link LoxFunction#call(Interpreter, LoxInstance, List)} puts the
+     * receiver in their frame directly.
+     **/
+    Object getCallee(Token name, InlineCache cache) {
+        int entry = lookup(name, cache);
+        int offset = cache.offset(entry);
+        if (offset != -1) {
+            return fields[offset];
+        }
+
+        return cache.method(entry);
+    }
+
+    /** Finds the cache entry for this instance's shape, looking the property up on a miss **/
+    private int lookup(Token name, InlineCache cache) {
+        int entry = cache.find(shape);
+        if (entry != -1) return entry;
 
-        throw new RuntimeError(name, "Undefined property: " + name.lexeme + ".");
+        // fields shadow methods
+        int offset = shape.offsetOf(name.lexeme);
+        LoxFunction method = null;
+        if (offset == -1) {
+            method = klass.findMethod(name.lexeme);
+            if (method == null) {
+                throw new RuntimeError(name, "Undefined property: " + name.lexeme + ".");
+            }
+        }
+        return cache.add(shape, offset, method);
     }
 
     public void set(Token name, Object value) {
-        fields.put(name.lexeme, value);
+        int offset = shape.offsetOf(name.lexeme);
+        if (offset == -1) {
+            // new field: move to the next shape and make room for it
+            shape = shape.withField(name.lexeme);
+            offset = shape.size() - 1;
+            if (offset >= fields.length) {
+                fields = Arrays.copyOf(fields, Math.max(offset + 1, fields.length * 2));
+            }
+            if (shape.size() > klass.fieldCapacity) {
+                klass.fieldCapacity = shape.size();
+            }
+        }
+
+        fields[offset] = value;
     }
 
     @Override
@@ -0,0 +1,78 @@
+package lox;
+
+/**
+ * Instruction set of the bytecode VM. Opcodes are plain bytes rather than an enum so that the
+ * VM's dispatch loop can switch on them directly.
+ *
+ * Operands follow the opcode in the chunk: constant indices and jump offsets take two bytes,
+ * local slots, upvalue indices and argument counts take one.
+ */
+final class OpCode {
+    static final byte CONSTANT = 0;
+    static final byte NIL = 1;
+    static final byte TRUE = 2;
+    static final byte FALSE = 3;
+    static final byte POP = 4;
+
+    // variables
+    static final byte GET_LOCAL = 5;
+    static final byte SET_LOCAL = 6;
+    static final byte GET_GLOBAL = 7;
+    static final byte DEFINE_GLOBAL = 8;
+    static final byte SET_GLOBAL = 9;
+    static final byte GET_UPVALUE = 10;
+    static final byte SET_UPVALUE = 11;
+
+    // properties
+    static final byte GET_PROPERTY = 12;
+    static final byte SET_PROPERTY = 13;
+    static final byte GET_SUPER = 14;
+
+    // operators
+    static final byte EQUAL = 15;
+    static final byte NOT_EQUAL = 16;
+    static final byte GREATER = 17;
+    static final byte GREATER_EQUAL = 18;
+    static final byte LESS = 19;
+    static final byte LESS_EQUAL = 20;
+    static final byte ADD = 21;
+    static final byte SUBTRACT = 22;
+    static final byte MULTIPLY = 23;
+    static final byte DIVIDE = 24;
+    static final byte NOT = 25;
+    static final byte NEGATE = 26;
+
+    static final byte PRINT = 27;
+
+    // control flow
+    static final byte JUMP = 28;
+    static final byte JUMP_IF_FALSE = 29;
+    static final byte JUMP_IF_TRUE = 30;
+    static final byte LOOP = 31;
+
+    // functions and classes
+    static final byte CALL = 32;
+    static final byte INVOKE = 33;
+    static final byte SUPER_INVOKE = 34;
+    static final byte CLOSURE = 35;
+    static final byte CLOSE_UPVALUE = 36;
+    static final byte RETURN = 37;
+    static final byte CLASS = 38;
+    static final byte INHERIT = 39;
+    static final byte METHOD = 40;
+
+    /** How many values each fixed-size instruction pushes (positive) or pops (negative) **/
+    static final int[] STACK_EFFECT = {
+        1, 1, 1, 1, -1,          // CONSTANT .. POP
+        1, 0, 1, -1, 0, 1, 0,    // GET_LOCAL .. SET_UPVALUE
+        0, -1, -1,               // GET_PROPERTY .. GET_SUPER
+        -1, -1, -1, -1, -1, -1,  // EQUAL .. LESS_EQUAL
+        -1, -1, -1, -1, 0, 0,    // ADD .. NEGATE
+        -1,                      // PRINT
+        0, 0, 0, 0,              // JUMP .. LOOP
+        0, 0, 0, 1, -1, -1,      // CALL .. RETURN (calls are adjusted by their argument count)
+        1, -1, -1                // CLASS .. METHOD
+    };
+
+    private OpCode() {}
+}
@@ -0,0 +1,296 @@
+package lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Simplifies resolved trees before they run: folds operators over literals, unwraps groupings,
+ * picks the branch of an if or while whose condition is a literal and drops statements after a
+ * 'return'. The program still behaves exactly the same, including its runtime errors, so
+ * operations that would fail (e.g. "a" - 1) are left for the interpreter to report.
+ *
+ * It runs after the {@link Resolver}, so every node it rebuilds carries over the depths, slots
+ * and flags the resolver set on the original. Function and class declarations are kept, with
+ * their bodies optimized in place, as the functions made from them at run time refer back to
+ * them. Every other node, blocks included, may be replaced by a new one.
+ */
+class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+
+    /** Optimizes a resolved program **/
+    List<Stmt> optimize(List<Stmt> statements) {
+        return optimizeAll(statements);
+    }
+
+    // ------------- START OPTIMIZATION HELPERS ------------- //
+    private Expr optimize(Expr expr) {
+        return expr.accept(this);
+    }
+
+    /** Returns the optimized statement, or null if it does nothing and can be dropped **/
+    private Stmt optimize(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    /** Optimizes a statement in a place that needs one, like an if's branch or a loop's body **/
+    private Stmt optimizeRequired(Stmt stmt) {
+        Stmt optimized = optimize(stmt);
+        // an expression statement evaluating nil is the cheapest way to do nothing
+        return optimized != null ? optimized : new Stmt.Expression(new Expr.Literal(null));
+    }
+
+    private List<Stmt> optimizeAll(List<Stmt> statements) {
+        List<Stmt> optimized = new ArrayList<>(statements.size());
+        for (Stmt stmt : statements) {
+            Stmt result = optimize(stmt);
+            if (result == null) continue;
+
+            optimized.add(result);
+            // nothing after a 'return' can run
+            if (alwaysReturns(result)) break;
+        }
+        return optimized;
+    }
+
+    private static boolean alwaysReturns(Stmt stmt) {
+        if (stmt instanceof Stmt.Return) return true;
+        if (stmt instanceof Stmt.Block) {
+            List<Stmt> statements = ((Stmt.Block) stmt).statements;
+            return !statements.isEmpty() && alwaysReturns(statements.get(statements.size() - 1));
+        }
+        if (stmt instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If) stmt;
+            return ifStmt.elseBranch != null && alwaysReturns(ifStmt.thenBranch) &&
+                   alwaysReturns(ifStmt.elseBranch);
+        }
+        return false;
+    }
+
+    private List<Expr> optimizeExprs(List<Expr> exprs) {
+        List<Expr> optimized = new ArrayList<>(exprs.size());
+        for (Expr expr : exprs) {
+            optimized.add(optimize(expr));
+        }
+        return optimized;
+    }
+
+    private static boolean isLiteral(Expr expr) {
+        return expr instanceof Expr.Literal;
+    }
+
+    private static Object valueOf(Expr literal) {
+        return ((Expr.Literal) literal).value;
+    }
+    // ------------- END OPTIMIZATION HELPERS ------------- //
+
+    // ------------- START STATEMENT OPTIMIZERS ------------- //
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression expressionStmt) {
+        Expr expression = optimize(expressionStmt.expression);
+        // evaluating a literal has no effect
+        if (isLiteral(expression)) return null;
+        if (expression == expressionStmt.expression) return expressionStmt;
+        return new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print printStmt) {
+        Expr expression = optimize(printStmt.expression);
+        if (expression == printStmt.expression) return printStmt;
+        return new Stmt.Print(expression);
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return returnStmt) {
+        if (returnStmt.value == null) return returnStmt;
+
+        Expr value = optimize(returnStmt.value);
+        if (value == returnStmt.value) return returnStmt;
+
+        Stmt.Return optimized = new Stmt.Return(returnStmt.keyword, value);
+        optimized.tailCall = returnStmt.tailCall;
+        return optimized;
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var varStmt) {
+        if (varStmt.initializer == null) return varStmt;
+
+        Expr initializer = optimize(varStmt.initializer);
+        if (initializer == varStmt.initializer) return varStmt;
+
+        Stmt.Var optimized = new Stmt.Var(varStmt.name, initializer);
+        optimized.slot = varStmt.slot;
+        optimized.captured = varStmt.captured;
+        return optimized;
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function functionStmt) {
+        // the body is replaced in place, as tail calls refer to the declaration
+        List<Stmt> body = optimizeAll(functionStmt.body);
+        functionStmt.body.clear();
+        functionStmt.body.addAll(body);
+        return functionStmt;
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class classStmt) {
+        for (Stmt.Function method : classStmt.methods) {
+            visitFunctionStmt(method);
+        }
+        return classStmt;
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block blockStmt) {
+        // the block is kept even when it ends up empty, as the resolver counted its scope
+        Stmt.Block optimized = new Stmt.Block(optimizeAll(blockStmt.statements));
+        optimized.slotCount = blockStmt.slotCount;
+        optimized.frameSize = blockStmt.frameSize;
+        return optimized;
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If ifStmt) {
+        Expr condition = optimize(ifStmt.condition);
+        if (isLiteral(condition)) {
+            if (Interpreter.isTruthy(valueOf(condition))) return optimize(ifStmt.thenBranch);
+            return ifStmt.elseBranch != null ? optimize(ifStmt.elseBranch) : null;
+        }
+
+        Stmt thenBranch = optimizeRequired(ifStmt.thenBranch);
+        Stmt elseBranch = ifStmt.elseBranch != null ? optimize(ifStmt.elseBranch) : null;
+        return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While whileStmt) {
+        Expr condition = optimize(whileStmt.condition);
+        // a loop that never runs is dropped, one that never stops is kept as it is
+        if (isLiteral(condition) && !Interpreter.isTruthy(valueOf(condition))) return null;
+
+        return new Stmt.While(condition, optimizeRequired(whileStmt.body));
+    }
+    // ------------- END STATEMENT OPTIMIZERS ------------- //
+
+    // ------------- START EXPRESSION OPTIMIZERS ------------- //
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary binary) {
+        Expr left = optimize(binary.left);
+        Expr right = optimize(binary.right);
+
+        if (isLiteral(left) && isLiteral(right)) {
+            try {
+                // a folded string is read every time the literal runs, so it is put together now
+                return new Expr.Literal(Rope.flatten(Interpreter.binaryOperation(binary.operator,
+                                                                                 valueOf(left), valueOf(right))));
+            } catch (RuntimeError error) {
+                // leave the error to be reported when (and if) the expression runs
+            }
+        }
+
+        if (left == binary.left && right == binary.right) return binary;
+        Expr.Binary optimized = new Expr.Binary(left, binary.operator, right);
+        optimized.numeric = Resolver.isNumeric(optimized);
+        return optimized;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary unary) {
+        Expr right = optimize(unary.right);
+
+        if (isLiteral(right)) {
+            Object value = valueOf(right);
+            if (unary.operator.type == TokenType.BANG) {
+                return new Expr.Literal(!Interpreter.isTruthy(value));
+            }
+            if (unary.operator.type == TokenType.MINUS && value instanceof Double) {
+                return new Expr.Literal(-(double) value);
+            }
+        }
+
+        if (right == unary.right) return unary;
+        return new Expr.Unary(unary.operator, right);
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical logical) {
+        Expr left = optimize(logical.left);
+        Expr right = optimize(logical.right);
+
+        // a literal left operand decides statically which operand is the result
+        if (isLiteral(left)) {
+            boolean isLeftTruthy = Interpreter.isTruthy(valueOf(left));
+            if (logical.operator.type == TokenType.OR) {
+                return isLeftTruthy ? left : right;
+            } else {
+                return isLeftTruthy ? right : left;
+            }
+        }
+
+        if (left == logical.left && right == logical.right) return logical;
+        return new Expr.Logical(left, logical.operator, right);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping grouping) {
+        // grouping only matters to the parser
+        return optimize(grouping.expression);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal literal) {
+        return literal;
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call call) {
+        Expr callee = optimize(call.callee);
+        List<Expr> arguments = optimizeExprs(call.arguments);
+
+        if (callee == call.callee && arguments.equals(call.arguments)) return call;
+        return new Expr.Call(callee, arguments, call.paren);
+    }
+
+    @Override
+    public Expr visitGetExpr(Expr.Get get) {
+        Expr object = optimize(get.object);
+        if (object == get.object) return get;
+        return new Expr.Get(object, get.name);
+    }
+
+    @Override
+    public Expr visitSetExpr(Expr.Set set) {
+        Expr object = optimize(set.object);
+        Expr value = optimize(set.value);
+        if (object == set.object && value == set.value) return set;
+        return new Expr.Set(object, set.name, value);
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign assign) {
+        Expr value = optimize(assign.value);
+        if (value == assign.value) return assign;
+
+        Expr.Assign optimized = new Expr.Assign(assign.name, value);
+        optimized.depth = assign.depth;
+        optimized.slot = assign.slot;
+        return optimized;
+    }
+
+    @Override
+    public Expr visitSuperExpr(Expr.Super superExpr) {
+        return superExpr;
+    }
+
+    @Override
+    public Expr visitThisExpr(Expr.This thisExpr) {
+        return thisExpr;
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable variable) {
+        return variable;
+    }
+    // ------------- END EXPRESSION OPTIMIZERS ------------- //
+}
@@ -3,15 +3,37 @@ package lox;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.function.Supplier;
 
+/**
+ * Parses tokens into statements. Tokens are pulled in one at a time as the parser needs them,
+ * so a parser reading from a {@link Scanner} can hand out the top-level declarations of a
+ * script one by one with {@link #next()} while the rest has not even been read yet.
+ */
 public class Parser {
     private static class ParseError extends RuntimeException {}
 
-    private final List<Token> tokens;
-    private int current = 0;
+    // hands out the tokens in order, ending with EOF
+    private final Supplier<Token> tokens;
+    // the token about to be parsed and the one parsed last
+    private Token current;
+    private Token previous = null;
+    // the run that syntax errors are reported to
+    private final Lox lox;
 
-    Parser(List<Token> tokens) {
+    Parser(List<Token> tokens, Lox lox) {
+        this(tokens.iterator()::next, lox);
+    }
+
+    /** Parses the tokens as the scanner scans them, reporting errors to the scanner's run **/
+    Parser(Scanner scanner) {
+        this(scanner::nextToken, scanner.lox);
+    }
+
+    private Parser(Supplier<Token> tokens, Lox lox) {
         this.tokens = tokens;
+        this.lox = lox;
+        this.current = tokens.get();
     }
 
     public List<Stmt> parse() {
@@ -27,6 +49,16 @@ public class Parser {
         }
     }
 
+    /** Whether there are declarations left to parse **/
+    boolean hasNext() {
+        return !isAtEnd();
+    }
+
+    /** Parses the next top-level declaration, returning null if it had syntax errors (which are reported) **/
+    Stmt next() {
+        return declaration();
+    }
+
     private Stmt declaration() {
         try {
             if (match(TokenType.VAR)) {
@@ -188,8 +220,9 @@ public class Parser {
         Stmt body = statement();
 
         // --------- start desugaring -----------//
+        // the blocks' lists stay growable, as the resolver merges blocks into them
         if (increment != null) {
-            body = new Stmt.Block(Arrays.asList(body, new Stmt.Expression(increment)));
+            body = new Stmt.Block(new ArrayList<>(Arrays.asList(body, new Stmt.Expression(increment))));
         }
 
         if (condition != null) {
@@ -199,7 +232,7 @@ public class Parser {
         }
 
         if (initializer != null) {
-            body = new Stmt.Block(Arrays.asList(initializer, body));
+            body = new Stmt.Block(new ArrayList<>(Arrays.asList(initializer, body)));
         }
         // --------- end desugaring -----------//
 
@@ -423,7 +456,7 @@ public class Parser {
     }
 
     private ParseError error(Token token, String message) {
-        Lox.error(token, message);
+        lox.error(token, message);
         return new ParseError();
     }
 
@@ -456,11 +489,14 @@ public class Parser {
     }
 
     private Token peek() {
-        return tokens.get(current);
+        return current;
     }
 
     private Token advance() {
-        if (!isAtEnd()) current++;
+        if (!isAtEnd()) {
+            previous = current;
+            current = tokens.get();
+        }
         return previous();
     }
 
@@ -469,6 +505,6 @@ public class Parser {
     }
 
     private Token previous() {
-        return tokens.get(current - 1);
+        return previous;
     }
 }
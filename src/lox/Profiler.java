@@ -0,0 +1,246 @@
+package lox;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A sampling profiler for Lox code, with --profile. The interpreter keeps a shadow stack of the
+ * Lox functions being run, along with the statement each of them is at, and a background thread
+ * takes a snapshot of it every {@link #INTERVAL} milliseconds. Samples are only taken while
+ * {@link Interpreter#interpret} runs, so scanning, parsing and resolving do not show up as time
+ * spent at the top level of the script.
+ *
+ * The interpreter thread writes the stack without locking and only publishes its depth, so the
+ * sampler may now and then see a frame that has just been replaced. That skews a sample, never
+ * the program. Functions compiled by the {@link Jit} do not report their statements, so their
+ * samples land on the line they are declared on.
+ */
+final class Profiler {
+    /** Milliseconds between samples **/
+    static final int INTERVAL = Integer.getInteger("lox.profile.interval", 1);
+    // how many functions and lines the report lists
+    private static final int TOP = 15;
+
+    // ------------- START SHADOW STACK ------------- //
+    // the functions (Stmt.Function declarations or classes being instantiated) being run, the
+    // script's top level at the bottom
+    private Object[] functions = new Object[64];
+    // the statement each of them is running, if known
+    private Stmt[] statements = new Stmt[64];
+    // written by the interpreter thread only, published to the sampler
+    private volatile int depth = 1;
+    // whether the interpreter is running, as scanning, parsing and resolving are not Lox code
+    private volatile boolean interpreting = false;
+    // ------------- END SHADOW STACK ------------- //
+
+    // ------------- START SAMPLES ------------- //
+    // only touched by the sampler, until stop() has joined it
+    private int samples = 0;
+    private final Map<String, Integer> stacks = new HashMap<>();
+    private final Map<String, Integer> selfSamples = new HashMap<>();
+    private final Map<String, Integer> totalSamples = new HashMap<>();
+    private final Map<String, Integer> lineSamples = new HashMap<>();
+    // ------------- END SAMPLES ------------- //
+
+    private Thread sampler = null;
+    private volatile boolean running = false;
+
+    // ------------- START INTERPRETER HOOKS ------------- //
+    /** Starts taking samples, until end() **/
+    void begin() {
+        interpreting = true;
+    }
+
+    void end() {
+        interpreting = false;
+    }
+
+    void enter(Object function) {
+        int top = depth;
+        if (top == functions.length) {
+            functions = Arrays.copyOf(functions, top * 2);
+            statements = Arrays.copyOf(statements, top * 2);
+        }
+        functions[top] = function;
+        statements[top] = null;
+        depth = top + 1;
+    }
+
+    /** Replaces the running function, for tail calls that reuse the caller's frame **/
+    void replace(Object function) {
+        int top = depth - 1;
+        functions[top] = function;
+        statements[top] = null;
+    }
+
+    void exit() {
+        depth--;
+    }
+
+    void at(Stmt stmt) {
+        statements[depth - 1] = stmt;
+    }
+
+    /** Unwinds everything but the top level, after a runtime error **/
+    void reset() {
+        depth = 1;
+    }
+    // ------------- END INTERPRETER HOOKS ------------- //
+
+    void start() {
+        running = true;
+        sampler = new Thread(() -> {
+            while (running) {
+                try {
+                    Thread.sleep(INTERVAL);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                sample();
+            }
+        }, "lox-profiler");
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+
+    void stop() {
+        running = false;
+        try {
+            sampler.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void sample() {
+        if (!interpreting) return;
+
+        int top = depth;
+        Object[] functions = this.functions;
+        Stmt[] statements = this.statements;
+        if (top > functions.length) return;
+
+        StringBuilder stack = new StringBuilder("<script>");
+        Set<String> seen = new HashSet<>();
+        String leaf = "<script>";
+        count(totalSamples, leaf);
+        seen.add(leaf);
+        for (int i = 1; i < top; i++) {
+            Object function = functions[i];
+            // a frame being pushed or popped as the sampler reads the stack
+            if (function == null) return;
+
+            leaf = label(function);
+            stack.append(';').append(leaf);
+            // recursive functions count once towards their total
+            if (seen.add(leaf)) count(totalSamples, leaf);
+        }
+
+        samples++;
+        count(stacks, stack.toString());
+        count(selfSamples, leaf);
+        int line = line(functions[top - 1], statements[top - 1]);
+        count(lineSamples, line == 0 ? leaf : leaf + " line " + line);
+    }
+
+    private static String label(Object function) {
+        if (function instanceof Stmt.Function) {
+            Token name = ((Stmt.Function) function).name;
+            return name.lexeme + ":" + name.line;
+        }
+        if (function instanceof LoxClass) {
+            return "new " + ((LoxClass) function).name;
+        }
+        return "<script>";
+    }
+
+    /** The line a function is at, falling back on where it is declared **/
+    private static int line(Object function, Stmt stmt) {
+        int line = stmt != null ? lineOf(stmt) : 0;
+        if (line == 0 && function instanceof Stmt.Function) {
+            line = ((Stmt.Function) function).name.line;
+        }
+        return line;
+    }
+
+    /** The line of a token in the statement, or 0 for blocks, which run statements of their own **/
+    private static int lineOf(Stmt stmt) {
+        if (stmt instanceof Stmt.Expression) return lineOf(((Stmt.Expression) stmt).expression);
+        if (stmt instanceof Stmt.Print) return lineOf(((Stmt.Print) stmt).expression);
+        if (stmt instanceof Stmt.Var) return ((Stmt.Var) stmt).name.line;
+        if (stmt instanceof Stmt.Return) return ((Stmt.Return) stmt).keyword.line;
+        if (stmt instanceof Stmt.Function) return ((Stmt.Function) stmt).name.line;
+        if (stmt instanceof Stmt.Class) return ((Stmt.Class) stmt).name.line;
+        if (stmt instanceof Stmt.If) return lineOf(((Stmt.If) stmt).condition);
+        if (stmt instanceof Stmt.While) return lineOf(((Stmt.While) stmt).condition);
+        return 0;
+    }
+
+    private static int lineOf(Expr expr) {
+        if (expr instanceof Expr.Binary) return ((Expr.Binary) expr).operator.line;
+        if (expr instanceof Expr.Logical) return ((Expr.Logical) expr).operator.line;
+        if (expr instanceof Expr.Unary) return ((Expr.Unary) expr).operator.line;
+        if (expr instanceof Expr.Call) return ((Expr.Call) expr).paren.line;
+        if (expr instanceof Expr.Get) return ((Expr.Get) expr).name.line;
+        if (expr instanceof Expr.Set) return ((Expr.Set) expr).name.line;
+        if (expr instanceof Expr.Super) return ((Expr.Super) expr).keyword.line;
+        if (expr instanceof Expr.This) return ((Expr.This) expr).keyword.line;
+        if (expr instanceof Expr.Variable) return ((Expr.Variable) expr).name.line;
+        if (expr instanceof Expr.Assign) return ((Expr.Assign) expr).name.line;
+        if (expr instanceof Expr.Grouping) return lineOf(((Expr.Grouping) expr).expression);
+        // literals carry no token
+        return 0;
+    }
+
+    private static void count(Map<String, Integer> counts, String key) {
+        counts.merge(key, 1, Integer::sum);
+    }
+
+    // ------------- START REPORTS ------------- //
+    /** Prints the functions and lines the most samples were taken in **/
+    void report(PrintStream out) {
+        out.printf("profile: %d samples, one every %d ms%n", samples, INTERVAL);
+        if (samples == 0) return;
+
+        out.println("   self   total  function");
+        for (Map.Entry<String, Integer> entry : top(selfSamples)) {
+            out.printf("%6.1f%% %6.1f%%  %s%n", percent(entry.getValue()),
+                    percent(totalSamples.get(entry.getKey())), entry.getKey());
+        }
+        out.println("   self  line");
+        for (Map.Entry<String, Integer> entry : top(lineSamples)) {
+            out.printf("%6.1f%%  %s%n", percent(entry.getValue()), entry.getKey());
+        }
+    }
+
+    /** Writes every sampled stack with its count, the input flame graph tools expect **/
+    void writeCollapsed(Path path) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Integer> entry : stacks.entrySet()) {
+                writer.write(entry.getKey() + " " + entry.getValue() + "\n");
+            }
+        }
+    }
+
+    private static List<Map.Entry<String, Integer>> top(Map<String, Integer> counts) {
+        List<Map.Entry<String, Integer>> entries = new ArrayList<>(counts.entrySet());
+        entries.sort(Map.Entry.<String, Integer>comparingByValue().reversed());
+        return entries.subList(0, Math.min(TOP, entries.size()));
+    }
+
+    private double percent(int count) {
+        return 100.0 * count / samples;
+    }
+    // ------------- END REPORTS ------------- //
+}
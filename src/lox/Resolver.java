@@ -1,15 +1,33 @@
 package lox;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Stack;
 
+/**
+ * Works out where every local variable lives at runtime. A variable that some nested function
+ * refers to is captured: it lives in a slot of its scope's {@link Environment}, which closures
+ * keep alive after the scope is gone. All other locals live in a slot of the frame of the
+ * function (or top-level script) declaring them, which is reused once the call is over. A scope
+ * without captured variables gets no environment at all, so neither does a call to a function
+ * containing no closures.
+ *
+ * Whether a variable is captured is only known once its scope has been resolved, so the nodes
+ * referring to it are filled in when the scope ends.
+ */
 public class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
-    private final Interpreter interpreter;
-    private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+    /** The depth of a reference to a local that lives in the frame rather than an environment **/
+    static final int FRAME = -2;
+
+    // the run that resolution errors are reported to
+    private final Lox lox;
+    private final Stack<Scope> scopes = new Stack<>();
     private FunctionType currentFunction = FunctionType.NONE;
     private ClassType currentClass = ClassType.NONE;
+    /** the frame of the innermost function being resolved, or of the script outside functions **/
+    private Frame currentFrame = new Frame(null);
     private enum FunctionType {
         // TODO: add more types for classes later
         NONE,
@@ -23,8 +41,66 @@ public class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
         SUBCLASS
     }
 
-    Resolver(Interpreter interpreter) {
-        this.interpreter = interpreter;
+    /** Hands out the frame slots of a function, or of the top-level script when function is null **/
+    private static class Frame {
+        final Stmt.Function function;
+        int nextSlot = 0;
+        int size = 0;
+
+        Frame(Stmt.Function function) {
+            this.function = function;
+        }
+    }
+
+    private static class Scope {
+        // in declaration order, which is the order captured variables get their slots in
+        final Map<String, Local> locals = new LinkedHashMap<>();
+        final Scope enclosing;
+        final Frame frame;
+        /** the frame slots handed out inside the scope are free again once it ends **/
+        final int firstFrameSlot;
+        /** how many captured variables the scope's environment holds, 0 if it needs none **/
+        int slotCount = 0;
+
+        Scope(Scope enclosing, Frame frame) {
+            this.enclosing = enclosing;
+            this.frame = frame;
+            this.firstFrameSlot = frame.nextSlot;
+        }
+    }
+
+    /** Receives where a variable lives: its depth (or {@link #FRAME}) and slot **/
+    private interface Binding {
+        void bind(int depth, int slot);
+    }
+
+    /** A place in the tree that refers to a local, and the scope it does so from **/
+    private static class Reference {
+        final Scope scope;
+        final Binding binding;
+
+        Reference(Scope scope, Binding binding) {
+            this.scope = scope;
+            this.binding = binding;
+        }
+    }
+
+    /** A local variable, its frame slot and the places that refer to it **/
+    private static class Local {
+        final Frame frame;
+        final int frameSlot;
+        final List<Reference> references = new ArrayList<>();
+        boolean isDefined = false;
+        boolean isCaptured = false;
+
+        Local(Frame frame, int frameSlot) {
+            this.frame = frame;
+            this.frameSlot = frameSlot;
+        }
+    }
+
+    Resolver(Lox lox) {
+        this.lox = lox;
     }
 
     // ------------- START RESOLUTION HELPERS ------------- //
@@ -42,59 +118,177 @@ public class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
         }
     }
 
-    /** This is where all resolutions end up and exit to the interpreter **/
-    private void resolveLocal(Expr expr, Token name) {
+    /**
+     * This is where all resolutions end up. Where the variable lives is handed to the binding, and
+     * so stored on the node, once the variable's scope ends. Globals are bound straight away, with
+     * a depth of -1.
+     */
+    private void resolveLocal(Token name, Binding binding) {
+        resolveLocal(name.lexeme, binding);
+    }
+
+    private void resolveLocal(String name, Binding binding) {
         for (int i = scopes.size() - 1; i >= 0; i--) {
-            if (scopes.get(i).containsKey(name.lexeme)) {
-                interpreter.resolve(expr, scopes.size() - i - 1);
+            Local local = scopes.get(i).locals.get(name);
+            if (local != null) {
+                // reaching a variable from another function makes it a captured variable
+                if (local.frame != currentFrame) {
+                    local.isCaptured = true;
+                }
+                local.references.add(new Reference(scopes.peek(), binding));
                 return;
             }
         }
+        binding.bind(-1, 0);
     }
 
     private void resolveFunction(Stmt.Function function, FunctionType type) {
-        beginScope();
-
         FunctionType enclosingFunction = currentFunction;
         currentFunction = type;
+        Frame enclosingFrame = currentFrame;
+        currentFrame = new Frame(function);
+
+        beginScope();
 
-        for (Token param : function.params) {
-            declare(param);
+        // methods keep 'this' in slot 0 of their own frame, in front of the params
+        int firstParam = 0;
+        if (type == FunctionType.METHOD || type == FunctionType.INITIALIZER) {
+            defineImplicit("this");
+            firstParam = 1;
+        }
+        // params are always bound to the frame, and copied into the environment if captured
+        int[] paramSlots = new int[firstParam + function.params.size()];
+        if (firstParam == 1) {
+            bindDeclaration("this", (depth, slot) -> paramSlots[0] = depth == FRAME ? -1 : slot);
+        }
+        for (int i = 0; i < function.params.size(); i++) {
+            int index = firstParam + i;
+            Token param = function.params.get(i);
+            declare(param, (depth, slot) -> paramSlots[index] = depth == FRAME ? -1 : slot);
             define(param);
         }
         resolve(function.body);
+        mergeBlocks(function.body);
+        function.slotCount = endScope();
+        function.paramSlots = paramSlots;
+        function.frameSize = currentFrame.size;
 
         currentFunction = enclosingFunction;
-        endScope();
+        currentFrame = enclosingFrame;
     }
     // ------------- END RESOLUTION HELPERS ------------- //
 
     // ------------- START SCOPING HELPERS ------------- //
     private void beginScope() {
-        scopes.push(new HashMap<>());
+        scopes.push(new Scope(scopes.isEmpty() ? null : scopes.peek(), currentFrame));
+    }
+
+    /**
+     * Gives the scope's captured variables their environment slots and tells everything that
+     * refers to its variables where they live.
+     *
+     * @return How many slots the scope's environment needs, 0 if it needs no environment.
+     */
+    private int endScope() {
+        Scope scope = scopes.pop();
+        for (Local local : scope.locals.values()) {
+            if (local.isCaptured) {
+                int slot = scope.slotCount++;
+                for (Reference reference : local.references) {
+                    reference.binding.bind(environmentsBetween(reference.scope, scope), slot);
+                }
+            } else {
+                for (Reference reference : local.references) {
+                    reference.binding.bind(FRAME, local.frameSlot);
+                }
+            }
+        }
+        scope.frame.nextSlot = scope.firstFrameSlot;
+        return scope.slotCount;
+    }
+
+    /**
+     * Splices the blocks in the list that declare no variables into it. Their statements run the
+     * same without the block, which the interpreter would otherwise enter every time, e.g. on
+     * every iteration of a for loop whose body is a block. Blocks that do declare variables keep
+     * them in the frame all the same unless they are captured, see {@link #endScope}.
+     */
+    private static void mergeBlocks(List<Stmt> statements) {
+        boolean merging = false;
+        List<Stmt> merged = new ArrayList<>(statements.size());
+        for (Stmt stmt : statements) {
+            if (stmt instanceof Stmt.Block && declaresNothing((Stmt.Block) stmt)) {
+                merged.addAll(((Stmt.Block) stmt).statements);
+                merging = true;
+            } else {
+                merged.add(stmt);
+            }
+        }
+
+        if (merging) {
+            statements.clear();
+            statements.addAll(merged);
+        }
     }
 
-    private void endScope() {
-        scopes.pop();
+    private static boolean declaresNothing(Stmt.Block block) {
+        for (Stmt stmt : block.statements) {
+            if (stmt instanceof Stmt.Var || stmt instanceof Stmt.Function || stmt instanceof Stmt.Class) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** How many environments there are at runtime from the inner scope out to the outer one **/
+    private static int environmentsBetween(Scope inner, Scope outer) {
+        int depth = 0;
+        for (Scope scope = inner; scope != outer; scope = scope.enclosing) {
+            // inner scopes have ended already, so they know whether they have an environment
+            if (scope.slotCount > 0) depth++;
+        }
+        return depth;
     }
 
-    private void declare(Token name) {
+    /** Declares a variable, whose declaration is told where the variable lives once known **/
+    private void declare(Token name, Binding declaration) {
+        // globals keep the slot -1 they start out with
         if (scopes.isEmpty()) return;
 
-        Map<String, Boolean> scope = scopes.peek();
+        Map<String, Local> scope = scopes.peek().locals;
 
         if (scope.containsKey(name.lexeme)) {
-            Lox.error(name, "Cannot redeclare variable in the same scope.");
+            lox.error(name, "Cannot redeclare variable in the same scope.");
         }
 
-        scope.put(name.lexeme, false);
+        scope.put(name.lexeme, newLocal());
+        bindDeclaration(name.lexeme, declaration);
+    }
+
+    /** Adds the declaration as a reference from the variable's own scope **/
+    private void bindDeclaration(String name, Binding declaration) {
+        scopes.peek().locals.get(name).references.add(new Reference(scopes.peek(), declaration));
+    }
+
+    private Local newLocal() {
+        // frame slots are handed out in declaration order
+        Local local = new Local(currentFrame, currentFrame.nextSlot++);
+        currentFrame.size = Math.max(currentFrame.size, currentFrame.nextSlot);
+        return local;
     }
 
     private void define(Token name) {
         if (scopes.isEmpty()) return;
 
-        Map<String, Boolean> scope = scopes.peek();
-        scope.put(name.lexeme, true);
+        scopes.peek().locals.get(name.lexeme).isDefined = true;
+    }
+
+    /** Declares and defines an implicit variable such as 'this' or 'super' **/
+    private Local defineImplicit(String name) {
+        Local local = newLocal();
+        local.isDefined = true;
+        scopes.peek().locals.put(name, local);
+        return local;
     }
     // ------------- END SCOPING HELPERS ------------- //
 
@@ -103,9 +297,25 @@ public class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
     public Void visitBinaryExpr(Expr.Binary binary) {
         resolve(binary.left);
         resolve(binary.right);
+        binary.numeric = isNumeric(binary);
         return null;
     }
 
+    /** Whether the binary expression always produces a number (or fails), see {@link Interpreter#isNumeric} **/
+    static boolean isNumeric(Expr.Binary binary) {
+        // '-', '*' and '/' always produce numbers, '+' only when both operands do
+        switch (binary.operator.type) {
+        case MINUS:
+        case STAR:
+        case SLASH:
+            return true;
+        case PLUS:
+            return Interpreter.isNumeric(binary.left) && Interpreter.isNumeric(binary.right);
+        default:
+            return false;
+        }
+    }
+
     @Override
     public Void visitCallExpr(Expr.Call call) {
         resolve(call.callee);
@@ -131,22 +341,30 @@ public class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
     @Override
     public Void visitSuperExpr(Expr.Super superExpr) {
         if (currentClass == ClassType.NONE) {
-            Lox.error(superExpr.keyword, "Cannot use 'super' keyword outside of class.");
+            lox.error(superExpr.keyword, "Cannot use 'super' keyword outside of class.");
         } else if (currentClass != ClassType.SUBCLASS) {
-            Lox.error(superExpr.keyword, "Cannot use 'super' keyword without superclass.");
+            lox.error(superExpr.keyword, "Cannot use 'super' keyword without superclass.");
         }
 
-        resolveLocal(superExpr, superExpr.keyword);
+        resolveLocal(superExpr.keyword, (depth, slot) -> superExpr.depth = depth);
+        // the method's 'this' becomes the receiver of the superclass's method
+        resolveLocal("this", (depth, slot) -> {
+            superExpr.thisDepth = depth;
+            superExpr.thisSlot = slot;
+        });
         return null;
     }
 
     @Override
     public Void visitThisExpr(Expr.This thisExpr) {
         if (currentClass == ClassType.NONE) {
-            Lox.error(thisExpr.keyword, "Cannot use 'this' keyword outside of class.");
+            lox.error(thisExpr.keyword, "Cannot use 'this' keyword outside of class.");
         }
 
-        resolveLocal(thisExpr, thisExpr.keyword);
+        resolveLocal(thisExpr.keyword, (depth, slot) -> {
+            thisExpr.depth = depth;
+            thisExpr.slot = slot;
+        });
         return null;
     }
 
@@ -174,18 +392,27 @@ public class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
         Token name = variable.name;
 
         // prevents weird things like a local declaration of "var a = a"
-        if (!scopes.empty() && !scopes.peek().get(name.lexeme)) {
-            Lox.error(name, "Can't read local variable in its own initializer.");
+        if (!scopes.empty()) {
+            Local local = scopes.peek().locals.get(name.lexeme);
+            if (local != null && !local.isDefined) {
+                lox.error(name, "Can't read local variable in its own initializer.");
+            }
         }
 
-        resolveLocal(variable, name);
+        resolveLocal(name, (depth, slot) -> {
+            variable.depth = depth;
+            variable.slot = slot;
+        });
         return null;
     }
 
     @Override
     public Void visitAssignExpr(Expr.Assign assign) {
         resolve(assign.value);
-        resolveLocal(assign, assign.name);
+        resolveLocal(assign.name, (depth, slot) -> {
+            assign.depth = depth;
+            assign.slot = slot;
+        });
         return null;
     }
 
@@ -212,7 +439,10 @@ public class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
 
     @Override
     public Void visitVarStmt(Stmt.Var var) {
-        declare(var.name);
+        declare(var.name, (depth, slot) -> {
+            var.slot = slot;
+            var.captured = depth != FRAME;
+        });
         if (var.initializer != null) {
             resolve(var.initializer);
         }
@@ -225,26 +455,27 @@ public class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
         ClassType previousClass = currentClass;
         currentClass = ClassType.CLASS;
 
-        declare(classStmt.name);
+        declare(classStmt.name, (depth, slot) -> {
+            classStmt.slot = slot;
+            classStmt.captured = depth != FRAME;
+        });
         define(classStmt.name);
 
         Expr.Variable superclass = classStmt.superclass;
         if (superclass != null && superclass.name.lexeme.equals(
                 classStmt.name.lexeme
         )) {
-            Lox.error(classStmt.name, "A class cannot inherit from itself.");
+            lox.error(classStmt.name, "A class cannot inherit from itself.");
         }
 
         if (superclass != null) {
             currentClass = ClassType.SUBCLASS;
             resolve(superclass);
             beginScope();
-            scopes.peek().put("super", true);
+            // the 'super' environment is made for every subclass, whether its methods use it or not
+            defineImplicit("super").isCaptured = true;
         }
 
-        beginScope();
-        scopes.peek().put("this", true);
-
         for (Stmt.Function function : classStmt.methods) {
             boolean isInitializer = function.name.lexeme.equals(LoxClass.INIT_KEYWORD);
             FunctionType declaration = isInitializer
@@ -254,7 +485,6 @@ public class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
             resolveFunction(function, declaration);
         }
 
-        endScope();
         if (superclass != null) {
             endScope();
         }
@@ -266,12 +496,17 @@ public class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
     public Void visitReturnStmt(Stmt.Return Return) {
         if (Return.value != null) {
             if (currentFunction == FunctionType.INITIALIZER) {
-                Lox.error(Return.keyword, "Cannot return value from initializer.");
-            } else if (currentFunction != FunctionType.FUNCTION) {
-                Lox.error(Return.keyword, "Cannot return from top-level code.");
+                lox.error(Return.keyword, "Cannot return value from initializer.");
+            } else if (currentFunction == FunctionType.NONE) {
+                lox.error(Return.keyword, "Cannot return from top-level code.");
             }
 
             resolve(Return.value);
+
+            // run on the trampoline in LoxFunction rather than as a nested call
+            if (Return.value instanceof Expr.Call && currentFrame.function != null) {
+                Return.tailCall = true;
+            }
         }
 
         return null;
@@ -280,7 +515,10 @@ public class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
     @Override
     public Void visitFunctionStmt(Stmt.Function function) {
         // function name is eagerly resolved in outer scope
-        declare(function.name);
+        declare(function.name, (depth, slot) -> {
+            function.slot = slot;
+            function.captured = depth != FRAME;
+        });
         define(function.name);
 
         resolveFunction(function, FunctionType.FUNCTION);
@@ -292,7 +530,12 @@ public class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
     public Void visitBlockStmt(Stmt.Block block) {
         beginScope();
         resolve(block.statements);
-        endScope();
+        mergeBlocks(block.statements);
+        block.slotCount = endScope();
+        // only blocks in top-level code need this, as functions size their frames for all their blocks
+        if (currentFrame.function == null) {
+            block.frameSize = currentFrame.size;
+        }
         return null;
     }
 
@@ -0,0 +1,99 @@
+package lox;
+
+import java.util.ArrayDeque;
+
+/**
+ * A string made by '+' that has not been copied together yet. Concatenating keeps references to
+ * both halves instead of copying them, so building a string piece by piece in a loop takes linear
+ * rather than quadratic time. The characters are only put together, once, when something needs
+ * them: {@link Interpreter#stringify}, {@link Interpreter#isEqual} or a native function.
+ *
+ * Lox strings are therefore either a String or a Rope, and code that checks for strings has to
+ * use {@link #isString}.
+ */
+final class Rope {
+    // results up to this long are copied right away, as a rope would not save anything on them
+    private static final int SHORT = 64;
+
+    // the halves, each a String or a Rope, until the rope is flattened
+    private Object left;
+    private Object right;
+    // the characters, once something asked for them
+    private String flat = null;
+    private final int length;
+
+    private Rope(Object left, Object right, int length) {
+        this.left = left;
+        this.right = right;
+        this.length = length;
+    }
+
+    /** Whether a value is a Lox string **/
+    static boolean isString(Object value) {
+        return value instanceof String || value instanceof Rope;
+    }
+
+    /** Concatenates two Lox strings, see {@link #isString} **/
+    static Object concat(Object left, Object right) {
+        int leftLength = length(left);
+        int rightLength = length(right);
+        if (leftLength == 0) return right;
+        if (rightLength == 0) return left;
+        if ((long) leftLength + rightLength > Integer.MAX_VALUE) {
+            // the same as Java's own concatenation would do
+            throw new OutOfMemoryError("String too long");
+        }
+
+        int length = leftLength + rightLength;
+        if (length <= SHORT) {
+            return left.toString() + right;
+        }
+        // appending a bit at a time extends the rope's last piece rather than growing a node per bit
+        if (left instanceof Rope && right instanceof String) {
+            Rope rope = (Rope) left;
+            if (rope.right instanceof String && length(rope.right) + rightLength <= SHORT) {
+                return new Rope(rope.left, (String) rope.right + right, length);
+            }
+        }
+        return new Rope(left, right, length);
+    }
+
+    /** The value with its characters put together, for values that may be a Rope **/
+    static Object flatten(Object value) {
+        return value instanceof Rope ? value.toString() : value;
+    }
+
+    private static int length(Object string) {
+        return string instanceof Rope ? ((Rope) string).length : ((String) string).length();
+    }
+
+    /** Puts the characters together, without recursing, as ropes built in loops are deep **/
+    @Override
+    public String toString() {
+        if (flat != null) return flat;
+
+        char[] chars = new char[length];
+        // fill from the end, walking down the right halves first
+        int end = length;
+        ArrayDeque<Object> pending = new ArrayDeque<>();
+        pending.push(this);
+        while (!pending.isEmpty()) {
+            Object piece = pending.pop();
+            if (piece instanceof Rope && ((Rope) piece).flat == null) {
+                Rope rope = (Rope) piece;
+                pending.push(rope.left);
+                pending.push(rope.right);
+            } else {
+                String string = piece.toString();
+                end -= string.length();
+                string.getChars(0, string.length(), chars, end);
+            }
+        }
+
+        flat = new String(chars);
+        // the halves are no longer needed, and would keep every piece alive
+        left = null;
+        right = null;
+        return flat;
+    }
+}
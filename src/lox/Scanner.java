@@ -1,69 +1,137 @@
 package lox;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 
+/**
+ * Turns source code into tokens without allocating anything for most of them: punctuation and
+ * keywords share the lexemes of their {@link TokenType}, keywords are recognised without cutting
+ * them out of the source, and identifiers are interned. Every occurrence of a name, in this
+ * script or any other, is the same String, so names can be compared by identity, a name is only
+ * held in memory once and its hash, which the maps of globals, methods and fields look it up by,
+ * is only computed once. Trees loaded by {@link TreeCache} intern their names too.
+ *
+ * A scanner reading from a {@link Reader} hands out one token at a time through
+ * {@link #nextToken()} and only keeps a window of the source in memory, so that scripts of any
+ * size can be run as a stream.
+ */
 public class Scanner {
-    //-------- INITIALIZE RESERVED KEYWORDS --------//
-    private static final HashMap<String, TokenType> keywords = new HashMap<>();
-
-    static {
-        keywords.put("and", TokenType.AND);
-        keywords.put("class", TokenType.CLASS);
-        keywords.put("else", TokenType.ELSE);
-        keywords.put("false", TokenType.FALSE);
-        keywords.put("for", TokenType.FOR);
-        keywords.put("fun", TokenType.FUN);
-        keywords.put("if", TokenType.IF);
-        keywords.put("nil", TokenType.NIL);
-        keywords.put("or", TokenType.OR);
-        keywords.put("print", TokenType.PRINT);
-        keywords.put("return", TokenType.RETURN);
-        keywords.put("super", TokenType.SUPER);
-        keywords.put("this", TokenType.THIS);
-        keywords.put("true", TokenType.TRUE);
-        keywords.put("var", TokenType.VAR);
-        keywords.put("while", TokenType.WHILE);
-    }
-    //-------- END INITIALIZE RESERVED KEYWORDS --------//
-
     //-------- START INSTANCE VARS --------//
-    private final String source;
-    private ArrayList<Token> tokens = new ArrayList<>();
+    // the run that scan errors are reported to
+    final Lox lox;
+    // null once the whole source is in the buffer
+    private Reader reader;
+    // the source, or for a reader the part of it from the current lexeme's start on
+    private char[] buffer;
+    // how many chars of the buffer hold source
+    private int limit;
+    // the token scanned last, waiting to be handed out by nextToken()
+    private Token token = null;
     // position of the current lexeme's start
     private int start = 0;
     // position of char we are curr at
     private int current = 0;
     // the line that the curr lexeme is on
     private int currentLine = 1;
+    // open addressing table of the identifiers seen so far, see symbol()
+    private String[] symbols = new String[256];
+    private int symbolCount = 0;
     //-------- END INSTANCE VARS --------//
 
-    Scanner(String source) {
-        this.source = source;
+    Scanner(String source, Lox lox) {
+        this.lox = lox;
+        this.reader = null;
+        this.buffer = source.toCharArray();
+        this.limit = buffer.length;
+    }
+
+    /** Scans the source as it is read. The reader stays the caller's to close. **/
+    Scanner(Reader reader, Lox lox) {
+        this.lox = lox;
+        this.reader = reader;
+        this.buffer = new char[8192];
+        this.limit = 0;
     }
 
     ArrayList<Token> scanTokens() {
-        while (!isEnd()) {
+        ArrayList<Token> tokens = new ArrayList<>();
+        Token token;
+        do {
+            token = nextToken();
+            tokens.add(token);
+        } while (token.type != TokenType.EOF);
+        return tokens;
+    }
+
+    /** Scans the next token, which is an EOF token from the end of the source on **/
+    Token nextToken() {
+        while (token == null) {
             // set start of token to the current position
             start = current;
-            // scan this lexeme
+            if (isEnd()) {
+                return new Token(TokenType.EOF, TokenType.EOF.lexeme, null, this.currentLine);
+            }
+            // scan this lexeme, which may be whitespace or a comment and leave no token
             scanToken();
         }
 
-        // add EOF token when we reach the end
-        tokens.add(new Token(TokenType.EOF, "", null, this.currentLine));
-        return tokens;
+        Token next = token;
+        token = null;
+        return next;
     }
 
     private boolean isEnd() {
-        return current >= this.source.length();
+        return !available(1);
+    }
+
+    /** Whether there are at least count chars from the current one on, reading more if needed **/
+    private boolean available(int count) {
+        while (current + count > limit) {
+            if (reader == null || !fill()) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reads more of the source into the buffer, first dropping everything before the current
+     * lexeme, which has been scanned already.
+     *
+     * @return Whether there was anything left to read.
+     */
+    private boolean fill() {
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, limit - start);
+            limit -= start;
+            current -= start;
+            start = 0;
+        }
+        // only a lexeme filling the whole buffer, like a huge string literal, makes it grow
+        if (limit == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+
+        try {
+            int read = reader.read(buffer, limit, buffer.length - limit);
+            if (read == -1) {
+                // so that scanning past the end does not read again
+                reader = null;
+                return false;
+            }
+            limit += read;
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     private void scanToken() {
         // start by advancing scanner cursor
         current++;
         // read previous char
-        char c = this.source.charAt(current - 1);
+        char c = this.buffer[current - 1];
 
         switch (c) {
             //---------- single-character tokens ---------//
@@ -123,14 +191,14 @@ public class Scanner {
                 } else if (isAlpha(c)) {
                     identifier();
                 } else {
-                    Lox.error(this.currentLine, "Unexpected token: " + c);
+                    lox.error(this.currentLine, "Unexpected token: " + c);
                 }
                 break;
         }
     }
 
     private boolean match(char c) {
-        if (isEnd() || this.source.charAt(this.current) != c) return false;
+        if (isEnd() || this.buffer[this.current] != c) return false;
         // only consume this char if match
         this.current++;
         return true;
@@ -139,7 +207,7 @@ public class Scanner {
     // peeks the current character without consuming it
     private char peek() {
         if (isEnd()) return '\0';
-        return this.source.charAt(this.current);
+        return this.buffer[this.current];
     }
 
     private void string() {
@@ -150,12 +218,12 @@ public class Scanner {
         }
         // if we are at the end at this point, then the string was not closed
         if (isEnd()) {
-            Lox.error(this.currentLine, "unterminated string");
+            lox.error(this.currentLine, "unterminated string");
             return;
         }
 
         // get the string value without quotes
-        String value = source.substring(this.start + 1, this.current);
+        String value = new String(buffer, this.start + 1, this.current - this.start - 1);
         addToken(TokenType.STRING, value);
 
         // consume the closing quote
@@ -178,11 +246,8 @@ public class Scanner {
             }
         }
 
-        double value = Double.parseDouble(source.substring(
-                this.start,
-                this.current
-        ));
-        addToken(TokenType.NUMBER, value);
+        String lexeme = new String(buffer, this.start, this.current - this.start);
+        token = new Token(TokenType.NUMBER, lexeme, Double.parseDouble(lexeme), this.currentLine);
     }
 
     private void identifier() {
@@ -191,12 +256,106 @@ public class Scanner {
             this.current++;
         }
 
-        // get identifier lexeme
-        String lexeme = this.source.substring(start, current);
-        // get keyword type if lexeme is a keyword, else it is just an
-        // IDENTIFIER
-        TokenType type = keywords.getOrDefault(lexeme, TokenType.IDENTIFIER);
-        addToken(type);
+        TokenType type = keyword();
+        if (type == TokenType.IDENTIFIER) {
+            token = new Token(type, symbol(), null, this.currentLine);
+        } else {
+            addToken(type);
+        }
+    }
+
+    /** Tells keywords from identifiers, branching on the first letters like a trie **/
+    private TokenType keyword() {
+        switch (buffer[start]) {
+        case 'a': return keyword(1, "nd", TokenType.AND);
+        case 'c': return keyword(1, "lass", TokenType.CLASS);
+        case 'e': return keyword(1, "lse", TokenType.ELSE);
+        case 'f':
+            if (current - start > 1) {
+                switch (buffer[start + 1]) {
+                case 'a': return keyword(2, "lse", TokenType.FALSE);
+                case 'o': return keyword(2, "r", TokenType.FOR);
+                case 'u': return keyword(2, "n", TokenType.FUN);
+                }
+            }
+            break;
+        case 'i': return keyword(1, "f", TokenType.IF);
+        case 'n': return keyword(1, "il", TokenType.NIL);
+        case 'o': return keyword(1, "r", TokenType.OR);
+        case 'p': return keyword(1, "rint", TokenType.PRINT);
+        case 'r': return keyword(1, "eturn", TokenType.RETURN);
+        case 's': return keyword(1, "uper", TokenType.SUPER);
+        case 't':
+            if (current - start > 1) {
+                switch (buffer[start + 1]) {
+                case 'h': return keyword(2, "is", TokenType.THIS);
+                case 'r': return keyword(2, "ue", TokenType.TRUE);
+                }
+            }
+            break;
+        case 'v': return keyword(1, "ar", TokenType.VAR);
+        case 'w': return keyword(1, "hile", TokenType.WHILE);
+        }
+        return TokenType.IDENTIFIER;
+    }
+
+    /** Whether the rest of the lexeme, from offset on, spells out the rest of the keyword **/
+    private TokenType keyword(int offset, String rest, TokenType type) {
+        if (current - start == offset + rest.length() && matches(start + offset, rest)) {
+            return type;
+        }
+        return TokenType.IDENTIFIER;
+    }
+
+    /** Whether the buffer holds the given text at the given position **/
+    private boolean matches(int position, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (buffer[position + i] != text.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the interned identifier between start and current. Names seen before in this source
+     * are found in the symbol table without allocating, new ones go through String.intern(), which
+     * makes them the same String as in every other script.
+     **/
+    private String symbol() {
+        int length = current - start;
+        // the same hash as String.hashCode(), which strings cache, so entries compare cheaply
+        int hash = 0;
+        for (int i = start; i < current; i++) {
+            hash = 31 * hash + buffer[i];
+        }
+
+        int mask = symbols.length - 1;
+        for (int index = hash & mask; ; index = (index + 1) & mask) {
+            String symbol = symbols[index];
+            if (symbol == null) {
+                symbol = new String(buffer, start, length).intern();
+                symbols[index] = symbol;
+                if (++symbolCount * 2 > symbols.length) growSymbols();
+                return symbol;
+            }
+            if (symbol.hashCode() == hash && symbol.length() == length && matches(start, symbol)) {
+                return symbol;
+            }
+        }
+    }
+
+    private void growSymbols() {
+        String[] old = symbols;
+        symbols = new String[old.length * 2];
+        int mask = symbols.length - 1;
+        for (String symbol : old) {
+            if (symbol == null) continue;
+
+            int index = symbol.hashCode() & mask;
+            while (symbols[index] != null) {
+                index = (index + 1) & mask;
+            }
+            symbols[index] = symbol;
+        }
     }
 
     private boolean isDigit(char c) {
@@ -215,20 +374,19 @@ public class Scanner {
 
     // peeks 1 character ahead without consuming it
     private char peekNext() {
-        if (this.current + 1 > this.source.length()) return '\0';
-        return this.source.charAt(this.current + 1);
+        if (!available(2)) return '\0';
+        return this.buffer[this.current + 1];
     }
 
-    // add non-literal token
+    // add punctuation or keyword token, whose lexeme is always the same
     private void addToken(TokenType token) {
-        String lexeme = this.source.substring(start, current);
-        tokens.add(new Token(token, lexeme, null, this.currentLine));
+        this.token = new Token(token, token.lexeme, null, this.currentLine);
     }
 
     // add literal token (overloaded)
     private void addToken(TokenType token, Object literal) {
-        String lexeme = this.source.substring(start, current);
-        tokens.add(new Token(token, lexeme, literal, this.currentLine));
+        String lexeme = new String(buffer, start, current - start);
+        this.token = new Token(token, lexeme, literal, this.currentLine);
     }
 }
 
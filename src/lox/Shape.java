@@ -0,0 +1,52 @@
+package lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The layout of a {@link LoxInstance}: which field lives at which index of its field array.
+ *
+ * Shapes are shared. Every class has a root shape without fields, and adding a field to an
+ * instance moves it along a transition to the child shape with that field appended. Instances of
+ * a class whose fields are set in the same order (usually by the same initializer) therefore end
+ * up sharing one shape, and the name-to-index map is stored once per shape instead of per object.
+ */
+final class Shape {
+    private final Map<String, Integer> offsets;
+    /** child shapes, keyed by the field added to get there; created lazily as most shapes are leaves **/
+    private Map<String, Shape> transitions = null;
+
+    /** the empty shape every instance of a class starts with **/
+    Shape() {
+        this.offsets = new HashMap<>();
+    }
+
+    private Shape(Shape parent, String field) {
+        this.offsets = new HashMap<>(parent.offsets);
+        this.offsets.put(field, parent.size());
+    }
+
+    /** Index of the field in the instance's field array, or -1 if this shape doesn't have it **/
+    int offsetOf(String field) {
+        Integer offset = offsets.get(field);
+        return offset == null ? -1 : offset;
+    }
+
+    int size() {
+        return offsets.size();
+    }
+
+    /** The shape reached by appending a field, shared with every other instance taking this path **/
+    Shape withField(String field) {
+        if (transitions == null) {
+            transitions = new HashMap<>();
+        }
+
+        Shape next = transitions.get(field);
+        if (next == null) {
+            next = new Shape(this, field);
+            transitions.put(field, next);
+        }
+        return next;
+    }
+}
@@ -0,0 +1,111 @@
+package lox;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Hashtable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters of what the tree-walk interpreter of one run does, with --stats. While a script runs
+ * they can be watched live over JMX, as lox:type=Stats,run=N, and they are printed when it is done.
+ *
+ * The interpreter only counts when its {@link Interpreter#stats} is set, so without --stats each
+ * counting site costs a null check. The counters are LongAdders, which spread their updates over
+ * cells instead of contending on one value, and sum them up only when read.
+ */
+final class Stats implements StatsMBean {
+    // tells apart the runs of a batch, which all register in the same JVM
+    private static final AtomicInteger RUNS = new AtomicInteger();
+
+    // ------------- START COUNTERS ------------- //
+    final LongAdder statements = new LongAdder();
+    // calls to Lox functions, tail calls included
+    final LongAdder calls = new LongAdder();
+    // environments made for captured variables, see {@link Resolver}
+    final LongAdder environments = new LongAdder();
+    final LongAdder instances = new LongAdder();
+    // methods bound to an instance by {@link LoxFunction#bind}
+    final LongAdder boundMethods = new LongAdder();
+    final LongAdder runtimeErrors = new LongAdder();
+    // ------------- END COUNTERS ------------- //
+
+    private String script = "";
+    private ObjectName name = null;
+
+    /** Makes the counters visible over JMX, for as long as the script runs **/
+    void register(String script) {
+        this.script = script;
+        Hashtable<String, String> properties = new Hashtable<>();
+        properties.put("type", "Stats");
+        properties.put("run", Integer.toString(RUNS.incrementAndGet()));
+        try {
+            name = new ObjectName("lox", properties);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+        } catch (JMException e) {
+            // the counters still get printed at the end
+            name = null;
+        }
+    }
+
+    void unregister() {
+        if (name == null) return;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(name);
+        } catch (JMException e) {
+            // already gone
+        }
+        name = null;
+    }
+
+    void report(PrintStream out) {
+        out.println("stats: " + script);
+        out.printf("%14d  statements%n", getStatements());
+        out.printf("%14d  calls%n", getCalls());
+        out.printf("%14d  environments%n", getEnvironments());
+        out.printf("%14d  instances%n", getInstances());
+        out.printf("%14d  bound methods%n", getBoundMethods());
+        out.printf("%14d  runtime errors%n", getRuntimeErrors());
+    }
+
+    // ------------- START MBEAN ------------- //
+    @Override
+    public String getScript() {
+        return script;
+    }
+
+    @Override
+    public long getStatements() {
+        return statements.sum();
+    }
+
+    @Override
+    public long getCalls() {
+        return calls.sum();
+    }
+
+    @Override
+    public long getEnvironments() {
+        return environments.sum();
+    }
+
+    @Override
+    public long getInstances() {
+        return instances.sum();
+    }
+
+    @Override
+    public long getBoundMethods() {
+        return boundMethods.sum();
+    }
+
+    @Override
+    public long getRuntimeErrors() {
+        return runtimeErrors.sum();
+    }
+    // ------------- END MBEAN ------------- //
+}
@@ -0,0 +1,12 @@
+package lox;
+
+/** What a {@link Stats} shows over JMX. JMX only takes public interfaces, hence this one is. **/
+public interface StatsMBean {
+    String getScript();
+    long getStatements();
+    long getCalls();
+    long getEnvironments();
+    long getInstances();
+    long getBoundMethods();
+    long getRuntimeErrors();
+}
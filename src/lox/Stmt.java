@@ -46,6 +46,8 @@ abstract class Stmt {
     static class Var extends Stmt {
         final Token name;
         final Expr initializer;
+        int slot = -1;
+        boolean captured;
 
         Var(Token name, Expr initializer) {
             this.name = name;
@@ -61,6 +63,7 @@ abstract class Stmt {
     static class Return extends Stmt {
         final Token keyword;
         final Expr value;
+        boolean tailCall;
 
         Return(Token keyword, Expr value) {
             this.keyword = keyword;
@@ -77,6 +80,13 @@ abstract class Stmt {
         final Token name;
         final List<Token> params;
         final List<Stmt> body;
+        int slot = -1;
+        boolean captured;
+        int slotCount;
+        int frameSize;
+        int[] paramSlots;
+        int callCount;
+        JitCode jitCode;
 
         Function(Token name, List<Token> params, List<Stmt> body) {
             this.name = name;
@@ -94,6 +104,8 @@ abstract class Stmt {
         final Token name;
         final Expr.Variable superclass;
         final List<Stmt.Function> methods;
+        int slot = -1;
+        boolean captured;
 
         Class(Token name, Expr.Variable superclass, List<Stmt.Function> methods) {
             this.name = name;
@@ -109,6 +121,8 @@ abstract class Stmt {
 
     static class Block extends Stmt {
         final List<Stmt> statements;
+        int slotCount;
+        int frameSize;
 
         Block(List<Stmt> statements) {
             this.statements = statements;
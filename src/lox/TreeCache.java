@@ -0,0 +1,748 @@
+package lox;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps resolved trees on disk, with --cache, so that running an unchanged script again skips
+ * the {@link Scanner}, {@link Parser} and {@link Resolver}. Entries are named after the SHA-256
+ * of the script's source, so editing a script simply leads to a different entry.
+ *
+ * An entry holds a header (magic, {@link #FORMAT_VERSION}, the full hash and a CRC32 of the
+ * rest), a table of every string in the tree and then the tree itself, node by node in prefix
+ * order. Numbers are written as variable-length ints, lines as the difference to the previous
+ * token's and names as indices into the string table, so that all the tokens of a name share one
+ * String, as they do when scanned.
+ *
+ * An entry that is missing, from another format version, truncated or corrupt counts as a miss,
+ * and gets replaced once the script has been resolved again. Besides the checksum, the reader
+ * checks every count against what is left of the entry before allocating for it, so that a
+ * corrupt length can never run it out of memory.
+ */
+class TreeCache {
+    // "LOXT"
+    private static final int MAGIC = 0x4c4f5854;
+    // bump on every change to the nodes, to what the Resolver stores on them or to this format
+    private static final int FORMAT_VERSION = 2;
+
+    // ------------- START NODE TAGS ------------- //
+    private static final int NONE = 0;
+    private static final int BINARY = 1;
+    private static final int CALL = 2;
+    private static final int GET = 3;
+    private static final int SET = 4;
+    private static final int SUPER = 5;
+    private static final int THIS = 6;
+    private static final int GROUPING = 7;
+    private static final int LITERAL = 8;
+    private static final int UNARY = 9;
+    private static final int VARIABLE = 10;
+    private static final int ASSIGN = 11;
+    private static final int LOGICAL = 12;
+    private static final int EXPRESSION = 13;
+    private static final int PRINT = 14;
+    private static final int VAR = 15;
+    private static final int RETURN = 16;
+    private static final int FUNCTION = 17;
+    private static final int CLASS = 18;
+    private static final int BLOCK = 19;
+    private static final int IF = 20;
+    private static final int WHILE = 21;
+    // ------------- END NODE TAGS ------------- //
+
+    // ------------- START LITERAL TAGS ------------- //
+    private static final int NIL = 0;
+    private static final int FALSE = 1;
+    private static final int TRUE = 2;
+    private static final int NUMBER = 3;
+    private static final int STRING = 4;
+    // a number without a fraction, which most are, written as an int instead of 8 bytes
+    private static final int INTEGER = 5;
+    // ------------- END LITERAL TAGS ------------- //
+
+    private final Path directory;
+
+    TreeCache(Path directory) {
+        this.directory = directory;
+    }
+
+    /** $XDG_CACHE_HOME/jlox, or ~/.cache/jlox without it **/
+    static Path defaultDirectory() {
+        String cacheHome = System.getenv("XDG_CACHE_HOME");
+        if (cacheHome == null || cacheHome.isEmpty()) {
+            return Paths.get(System.getProperty("user.home"), ".cache", "jlox");
+        }
+        return Paths.get(cacheHome, "jlox");
+    }
+
+    /** The key a script's tree is cached under **/
+    static byte[] key(byte[] source) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(source);
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM has to provide SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Loads a cached tree.
+     *
+     * @return The resolved statements, or null if there is no usable entry for the key.
+     */
+    List<Stmt> load(byte[] key) {
+        try {
+            return new TreeReader(Files.readAllBytes(entry(key))).read(key);
+        } catch (IOException | RuntimeException e) {
+            // no entry yet, or a truncated or corrupted one, which the next store() replaces
+            return null;
+        }
+    }
+
+    /**
+     * Stores a resolved tree. Failing to write the cache does not fail the run, so errors are
+     * ignored and the script simply gets resolved again next time.
+     */
+    void store(byte[] key, List<Stmt> statements) {
+        try {
+            Files.createDirectories(directory);
+            // written next to the entry and moved in place, so concurrent runs never see half of it
+            Path temporary = Files.createTempFile(directory, "entry", ".tmp");
+            try {
+                try (OutputStream out = Files.newOutputStream(temporary)) {
+                    new TreeWriter().write(key, statements, out);
+                }
+                Files.move(temporary, entry(key), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+        } catch (IOException e) {
+            // a read-only or full cache directory
+        }
+    }
+
+    private Path entry(byte[] key) {
+        StringBuilder name = new StringBuilder();
+        for (byte b : key) {
+            name.append(String.format("%02x", b));
+        }
+        return directory.resolve(name.append(".tree").toString());
+    }
+
+    /** Writes a tree to the cache format **/
+    private static class TreeWriter implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final Map<String, Integer> strings = new HashMap<>();
+        private final List<String> stringTable = new ArrayList<>();
+        // the line of the token written last, as lines are written as the difference to it
+        private int line = 0;
+
+        void write(byte[] key, List<Stmt> statements, OutputStream destination) throws IOException {
+            writeStatements(statements);
+
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            DataOutputStream table = new DataOutputStream(body);
+            writeInt(table, stringTable.size());
+            for (String string : stringTable) {
+                byte[] utf8 = string.getBytes(StandardCharsets.UTF_8);
+                writeInt(table, utf8.length);
+                table.write(utf8);
+            }
+            bytes.writeTo(table);
+            CRC32 checksum = new CRC32();
+            checksum.update(body.toByteArray());
+
+            DataOutputStream header = new DataOutputStream(destination);
+            header.writeInt(MAGIC);
+            header.writeInt(FORMAT_VERSION);
+            header.write(key);
+            header.writeInt((int) checksum.getValue());
+            body.writeTo(header);
+            header.flush();
+        }
+
+        // ------------- START PRIMITIVES ------------- //
+        /** Writes an int in as few bytes as it needs, zigzag encoded so that -1 takes one byte **/
+        private static void writeInt(DataOutputStream out, int value) throws IOException {
+            int bits = (value << 1) ^ (value >> 31);
+            while ((bits & ~0x7f) != 0) {
+                out.writeByte((bits & 0x7f) | 0x80);
+                bits >>>= 7;
+            }
+            out.writeByte(bits);
+        }
+
+        // the tree is written to memory first, which never fails
+        private void writeInt(int value) {
+            try {
+                writeInt(out, value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void writeBoolean(boolean value) {
+            writeInt(value ? 1 : 0);
+        }
+
+        private void writeString(String value) {
+            Integer index = strings.get(value);
+            if (index == null) {
+                index = stringTable.size();
+                strings.put(value, index);
+                stringTable.add(value);
+            }
+            writeInt(index);
+        }
+
+        private void writeToken(Token token) {
+            writeInt(token.type.ordinal());
+            writeInt(token.line - line);
+            line = token.line;
+            // punctuation and keywords share their type's lexeme, see TokenType
+            if (token.type.lexeme == null) {
+                writeString(token.lexeme);
+            }
+            if (token.type == TokenType.NUMBER || token.type == TokenType.STRING) {
+                writeLiteral(token.literal);
+            }
+        }
+
+        private void writeLiteral(Object value) {
+            if (value == null) {
+                writeInt(NIL);
+            } else if (value instanceof Boolean) {
+                writeInt((Boolean) value ? TRUE : FALSE);
+            } else if (value instanceof Double) {
+                writeNumber((Double) value);
+            } else {
+                writeInt(STRING);
+                writeString((String) value);
+            }
+        }
+
+        private void writeNumber(double value) {
+            // -0.0 would come back as 0.0
+            if (value == (int) value && Double.doubleToRawLongBits(value) != Double.doubleToRawLongBits(-0.0)) {
+                writeInt(INTEGER);
+                writeInt((int) value);
+                return;
+            }
+
+            writeInt(NUMBER);
+            try {
+                out.writeDouble(value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        // ------------- END PRIMITIVES ------------- //
+
+        // ------------- START NODES ------------- //
+        private void write(Expr expr) {
+            if (expr == null) {
+                writeInt(NONE);
+            } else {
+                expr.accept(this);
+            }
+        }
+
+        private void write(Stmt stmt) {
+            if (stmt == null) {
+                writeInt(NONE);
+            } else {
+                stmt.accept(this);
+            }
+        }
+
+        private void writeStatements(List<? extends Stmt> statements) {
+            writeInt(statements.size());
+            for (Stmt stmt : statements) {
+                write(stmt);
+            }
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary binary) {
+            writeInt(BINARY);
+            write(binary.left);
+            writeToken(binary.operator);
+            write(binary.right);
+            writeBoolean(binary.numeric);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call call) {
+            writeInt(CALL);
+            write(call.callee);
+            writeInt(call.arguments.size());
+            for (Expr argument : call.arguments) {
+                write(argument);
+            }
+            writeToken(call.paren);
+            return null;
+        }
+
+        @Override
+        public Void visitGetExpr(Expr.Get get) {
+            writeInt(GET);
+            write(get.object);
+            writeToken(get.name);
+            return null;
+        }
+
+        @Override
+        public Void visitSetExpr(Expr.Set set) {
+            writeInt(SET);
+            write(set.object);
+            writeToken(set.name);
+            write(set.value);
+            return null;
+        }
+
+        @Override
+        public Void visitSuperExpr(Expr.Super superExpr) {
+            writeInt(SUPER);
+            writeToken(superExpr.keyword);
+            writeToken(superExpr.method);
+            writeInt(superExpr.depth);
+            writeInt(superExpr.thisDepth);
+            writeInt(superExpr.thisSlot);
+            return null;
+        }
+
+        @Override
+        public Void visitThisExpr(Expr.This thisExpr) {
+            writeInt(THIS);
+            writeToken(thisExpr.keyword);
+            writeInt(thisExpr.depth);
+            writeInt(thisExpr.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping grouping) {
+            writeInt(GROUPING);
+            write(grouping.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal literal) {
+            writeInt(LITERAL);
+            writeLiteral(literal.value);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary unary) {
+            writeInt(UNARY);
+            writeToken(unary.operator);
+            write(unary.right);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable variable) {
+            writeInt(VARIABLE);
+            writeToken(variable.name);
+            writeInt(variable.depth);
+            writeInt(variable.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign assign) {
+            writeInt(ASSIGN);
+            writeToken(assign.name);
+            write(assign.value);
+            writeInt(assign.depth);
+            writeInt(assign.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical logical) {
+            writeInt(LOGICAL);
+            write(logical.left);
+            writeToken(logical.operator);
+            write(logical.right);
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression expressionStmt) {
+            writeInt(EXPRESSION);
+            write(expressionStmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print printStmt) {
+            writeInt(PRINT);
+            write(printStmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var varStmt) {
+            writeInt(VAR);
+            writeToken(varStmt.name);
+            write(varStmt.initializer);
+            writeInt(varStmt.slot);
+            writeBoolean(varStmt.captured);
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return returnStmt) {
+            writeInt(RETURN);
+            writeToken(returnStmt.keyword);
+            write(returnStmt.value);
+            writeBoolean(returnStmt.tailCall);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function function) {
+            writeInt(FUNCTION);
+            writeToken(function.name);
+            writeInt(function.params.size());
+            for (Token param : function.params) {
+                writeToken(param);
+            }
+            writeStatements(function.body);
+            writeInt(function.slot);
+            writeBoolean(function.captured);
+            writeInt(function.slotCount);
+            writeInt(function.frameSize);
+            writeInt(function.paramSlots.length);
+            for (int paramSlot : function.paramSlots) {
+                writeInt(paramSlot);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitClassStmt(Stmt.Class classStmt) {
+            writeInt(CLASS);
+            writeToken(classStmt.name);
+            write(classStmt.superclass);
+            writeStatements(classStmt.methods);
+            writeInt(classStmt.slot);
+            writeBoolean(classStmt.captured);
+            return null;
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block block) {
+            writeInt(BLOCK);
+            writeStatements(block.statements);
+            writeInt(block.slotCount);
+            writeInt(block.frameSize);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If ifStmt) {
+            writeInt(IF);
+            write(ifStmt.condition);
+            write(ifStmt.thenBranch);
+            write(ifStmt.elseBranch);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While whileStmt) {
+            writeInt(WHILE);
+            write(whileStmt.condition);
+            write(whileStmt.body);
+            return null;
+        }
+        // ------------- END NODES ------------- //
+    }
+
+    /** Reads a tree back from the cache format, in the order TreeWriter wrote it **/
+    private static class TreeReader {
+        private static final TokenType[] TOKEN_TYPES = TokenType.values();
+
+        private final byte[] entry;
+        private final DataInputStream in;
+        private final int size;
+        private String[] strings;
+        // the interned copies of the strings that are identifiers, made on first use
+        private String[] names;
+        private int line = 0;
+
+        TreeReader(byte[] entry) {
+            this.entry = entry;
+            this.in = new DataInputStream(new ByteArrayInputStream(entry));
+            this.size = entry.length;
+        }
+
+        /** Reads the whole entry, or returns null if it is not the one for this key and version **/
+        List<Stmt> read(byte[] key) throws IOException {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) return null;
+            byte[] entryKey = new byte[key.length];
+            in.readFully(entryKey);
+            if (!Arrays.equals(entryKey, key)) return null;
+            // a corrupt tree could still read fine, and then fail to run
+            int expected = in.readInt();
+            int start = size - in.available();
+            CRC32 checksum = new CRC32();
+            checksum.update(entry, start, size - start);
+            if ((int) checksum.getValue() != expected) return null;
+
+            strings = new String[readCount()];
+            for (int i = 0; i < strings.length; i++) {
+                byte[] utf8 = new byte[readCount()];
+                in.readFully(utf8);
+                strings[i] = new String(utf8, StandardCharsets.UTF_8);
+            }
+            names = new String[strings.length];
+            return readStatements();
+        }
+
+        // ------------- START PRIMITIVES ------------- //
+        private int readInt() throws IOException {
+            int bits = 0;
+            for (int shift = 0; ; shift += 7) {
+                int b = in.readUnsignedByte();
+                bits |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) break;
+            }
+            return (bits >>> 1) ^ -(bits & 1);
+        }
+
+        /**
+         * Reads the number of elements that follow. Every element takes at least a byte, so a
+         * count past the end of the entry means it is corrupt, and allocating for it could run
+         * out of memory.
+         */
+        private int readCount() throws IOException {
+            int count = readInt();
+            if (count < 0 || count > in.available()) {
+                throw new IOException("count " + count + " runs past the end of the entry");
+            }
+            return count;
+        }
+
+        /** Reads the size of a frame or environment, which cannot have more slots than the entry has bytes **/
+        private int readSize() throws IOException {
+            int slots = readInt();
+            if (slots < 0 || slots > size) throw new IOException("size " + slots + " is corrupt");
+            return slots;
+        }
+
+        private boolean readBoolean() throws IOException {
+            return readInt() != 0;
+        }
+
+        private String readString() throws IOException {
+            return strings[readInt()];
+        }
+
+        /** Reads an identifier, interned like the scanner's so that it is the same String **/
+        private String readName() throws IOException {
+            int index = readInt();
+            String name = names[index];
+            if (name == null) {
+                name = strings[index].intern();
+                names[index] = name;
+            }
+            return name;
+        }
+
+        private Token readToken() throws IOException {
+            TokenType type = TOKEN_TYPES[readInt()];
+            line += readInt();
+            String lexeme = type.lexeme != null ? type.lexeme
+                            : type == TokenType.IDENTIFIER ? readName() : readString();
+            Object literal = null;
+            if (type == TokenType.NUMBER || type == TokenType.STRING) {
+                literal = readLiteral();
+            }
+            return new Token(type, lexeme, literal, line);
+        }
+
+        private Object readLiteral() throws IOException {
+            int tag = readInt();
+            switch (tag) {
+                case NIL: return null;
+                case FALSE: return false;
+                case TRUE: return true;
+                case NUMBER: return in.readDouble();
+                case INTEGER: return (double) readInt();
+                case STRING: return readString();
+                default: throw new IOException("unknown literal tag " + tag);
+            }
+        }
+        // ------------- END PRIMITIVES ------------- //
+
+        // ------------- START NODES ------------- //
+        private List<Stmt> readStatements() throws IOException {
+            int count = readCount();
+            List<Stmt> statements = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                statements.add(readStmt());
+            }
+            return statements;
+        }
+
+        private Expr readExpr() throws IOException {
+            int tag = readInt();
+            switch (tag) {
+                case NONE:
+                    return null;
+                case BINARY: {
+                    Expr.Binary binary = new Expr.Binary(readExpr(), readToken(), readExpr());
+                    binary.numeric = readBoolean();
+                    return binary;
+                }
+                case CALL: {
+                    Expr callee = readExpr();
+                    int count = readCount();
+                    List<Expr> arguments = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        arguments.add(readExpr());
+                    }
+                    return new Expr.Call(callee, arguments, readToken());
+                }
+                case GET:
+                    return new Expr.Get(readExpr(), readToken());
+                case SET:
+                    return new Expr.Set(readExpr(), readToken(), readExpr());
+                case SUPER: {
+                    Expr.Super superExpr = new Expr.Super(readToken(), readToken());
+                    superExpr.depth = readInt();
+                    superExpr.thisDepth = readInt();
+                    superExpr.thisSlot = readInt();
+                    return superExpr;
+                }
+                case THIS: {
+                    Expr.This thisExpr = new Expr.This(readToken());
+                    thisExpr.depth = readInt();
+                    thisExpr.slot = readInt();
+                    return thisExpr;
+                }
+                case GROUPING:
+                    return new Expr.Grouping(readExpr());
+                case LITERAL:
+                    return new Expr.Literal(readLiteral());
+                case UNARY:
+                    return new Expr.Unary(readToken(), readExpr());
+                case VARIABLE: {
+                    Expr.Variable variable = new Expr.Variable(readToken());
+                    variable.depth = readInt();
+                    variable.slot = readInt();
+                    return variable;
+                }
+                case ASSIGN: {
+                    Expr.Assign assign = new Expr.Assign(readToken(), readExpr());
+                    assign.depth = readInt();
+                    assign.slot = readInt();
+                    return assign;
+                }
+                case LOGICAL:
+                    return new Expr.Logical(readExpr(), readToken(), readExpr());
+                default:
+                    throw new IOException("unknown expression tag " + tag);
+            }
+        }
+
+        private Stmt readStmt() throws IOException {
+            int tag = readInt();
+            switch (tag) {
+                case NONE:
+                    return null;
+                case EXPRESSION:
+                    return new Stmt.Expression(readExpr());
+                case PRINT:
+                    return new Stmt.Print(readExpr());
+                case VAR: {
+                    Stmt.Var varStmt = new Stmt.Var(readToken(), readExpr());
+                    varStmt.slot = readInt();
+                    varStmt.captured = readBoolean();
+                    return varStmt;
+                }
+                case RETURN: {
+                    Stmt.Return returnStmt = new Stmt.Return(readToken(), readExpr());
+                    returnStmt.tailCall = readBoolean();
+                    return returnStmt;
+                }
+                case FUNCTION:
+                    return readFunction();
+                case CLASS: {
+                    Token name = readToken();
+                    Expr.Variable superclass = (Expr.Variable) readExpr();
+                    int count = readCount();
+                    List<Stmt.Function> methods = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        // written by writeStatements(), so every method comes with its own tag
+                        if (readInt() != FUNCTION) throw new IOException("method is not a function");
+                        methods.add(readFunction());
+                    }
+                    Stmt.Class classStmt = new Stmt.Class(name, superclass, methods);
+                    classStmt.slot = readInt();
+                    classStmt.captured = readBoolean();
+                    return classStmt;
+                }
+                case BLOCK: {
+                    Stmt.Block block = new Stmt.Block(readStatements());
+                    block.slotCount = readSize();
+                    block.frameSize = readSize();
+                    return block;
+                }
+                case IF:
+                    return new Stmt.If(readExpr(), readStmt(), readStmt());
+                case WHILE:
+                    return new Stmt.While(readExpr(), readStmt());
+                default:
+                    throw new IOException("unknown statement tag " + tag);
+            }
+        }
+
+        /** Reads a function whose tag has been read already **/
+        private Stmt.Function readFunction() throws IOException {
+            Token name = readToken();
+            int count = readCount();
+            List<Token> params = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                params.add(readToken());
+            }
+            Stmt.Function function = new Stmt.Function(name, params, readStatements());
+            function.slot = readInt();
+            function.captured = readBoolean();
+            function.slotCount = readSize();
+            function.frameSize = readSize();
+            // methods have a slot for 'this' ahead of the params
+            function.paramSlots = new int[readCount()];
+            for (int i = 0; i < function.paramSlots.length; i++) {
+                function.paramSlots[i] = readInt();
+            }
+            return function;
+        }
+        // ------------- END NODES ------------- //
+    }
+}
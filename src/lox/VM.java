@@ -0,0 +1,647 @@
+package lox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A stack based virtual machine that runs the bytecode produced by the {@link Compiler}.
+ * It is an alternative to the tree-walking {@link Interpreter} and produces the same output.
+ */
+public class VM {
+    private static final int FRAMES_MAX = 4096;
+
+    private final Map<String, Object> globals = new HashMap<>();
+    private Object[] stack = new Object[1024];
+    private int sp = 0;
+    private CallFrame[] frames = new CallFrame[64];
+    private int frameCount = 0;
+    // open upvalues, sorted by the stack slot they point to, highest first
+    private Upvalue openUpvalues = null;
+    // the run that gets the program's output and runtime errors
+    private final Lox lox;
+
+    VM(Lox lox) {
+        this.lox = lox;
+        globals.put("clock", new Native("clock", 0) {
+            @Override
+            Object call(Object[] args, int first) {
+                return (double) System.currentTimeMillis() / 1000.0;
+            }
+        });
+    }
+
+    // ------------- START RUNTIME OBJECTS ------------- //
+    /** A compiled function, shared by all closures created from it **/
+    static class Function {
+        final String name;
+        final int arity;
+        final Chunk chunk = new Chunk();
+        int upvalueCount = 0;
+        // the most stack slots the function's frame can need at once
+        int maxStack = 0;
+
+        Function(String name, int arity) {
+            this.name = name;
+            this.arity = arity;
+        }
+
+        @Override
+        public String toString() {
+            return "<fn " + name + ">";
+        }
+    }
+
+    static class Closure {
+        final Function function;
+        final Upvalue[] upvalues;
+
+        Closure(Function function) {
+            this.function = function;
+            this.upvalues = new Upvalue[function.upvalueCount];
+        }
+
+        @Override
+        public String toString() {
+            return function.toString();
+        }
+    }
+
+    /** A captured variable. It points into the stack until the variable goes out of scope **/
+    static class Upvalue {
+        int slot;
+        Object closed;
+        boolean isOpen = true;
+        Upvalue next;
+
+        Upvalue(int slot) {
+            this.slot = slot;
+        }
+    }
+
+    static class Klass {
+        final String name;
+        final Map<String, Closure> methods = new HashMap<>();
+        Closure initializer = null;
+
+        Klass(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    static class Instance {
+        final Klass klass;
+        final Map<String, Object> fields = new HashMap<>();
+
+        Instance(Klass klass) {
+            this.klass = klass;
+        }
+
+        @Override
+        public String toString() {
+            return klass.name + " instance";
+        }
+    }
+
+    static class BoundMethod {
+        final Object receiver;
+        final Closure method;
+
+        BoundMethod(Object receiver, Closure method) {
+            this.receiver = receiver;
+            this.method = method;
+        }
+
+        @Override
+        public String toString() {
+            return method.toString();
+        }
+    }
+
+    abstract static class Native {
+        final String name;
+        final int arity;
+
+        Native(String name, int arity) {
+            this.name = name;
+            this.arity = arity;
+        }
+
+        /** Arguments are read straight off the VM stack, starting at index first **/
+        abstract Object call(Object[] args, int first);
+
+        @Override
+        public String toString() {
+            return "<native fn>";
+        }
+    }
+
+    private static class CallFrame {
+        Closure closure;
+        int ip;
+        // stack slot of the frame's slot 0
+        int base;
+    }
+
+    /** A runtime error raised by the VM, reported with the line of the failing instruction **/
+    private static class VMError extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        VMError(String message) {
+            super(message, null, false, false);
+        }
+    }
+    // ------------- END RUNTIME OBJECTS ------------- //
+
+    public void interpret(Function script) {
+        Closure closure = new Closure(script);
+        // like call() does for every other frame, as run() pushes without checking
+        if (script.maxStack > stack.length) {
+            stack = Arrays.copyOf(stack, Math.max(stack.length * 2, script.maxStack));
+        }
+        sp = 0;
+        stack[sp++] = closure;
+        pushFrame(closure, 0);
+        run();
+    }
+
+    private void run() {
+        CallFrame frame = frames[frameCount - 1];
+        byte[] code = frame.closure.function.chunk.code;
+        Object[] constants = frame.closure.function.chunk.constants;
+        Object[] stack = this.stack;
+        int ip = frame.ip;
+        int base = frame.base;
+        int sp = this.sp;
+
+        try {
+            while (true) {
+                switch (code[ip++]) {
+                case OpCode.CONSTANT:
+                    stack[sp++] = constants[readShort(code, ip)];
+                    ip += 2;
+                    break;
+                case OpCode.NIL:
+                    stack[sp++] = null;
+                    break;
+                case OpCode.TRUE:
+                    stack[sp++] = Boolean.TRUE;
+                    break;
+                case OpCode.FALSE:
+                    stack[sp++] = Boolean.FALSE;
+                    break;
+                case OpCode.POP:
+                    sp--;
+                    break;
+
+                //---------- variables ---------//
+                case OpCode.GET_LOCAL:
+                    stack[sp++] = stack[base + (code[ip++] & 0xff)];
+                    break;
+                case OpCode.SET_LOCAL:
+                    stack[base + (code[ip++] & 0xff)] = stack[sp - 1];
+                    break;
+                case OpCode.GET_GLOBAL: {
+                    String name = (String) constants[readShort(code, ip)];
+                    ip += 2;
+                    Object value = globals.get(name);
+                    if (value == null && !globals.containsKey(name)) {
+                        throw new VMError("Undefined variable '" + name + "'.");
+                    }
+                    stack[sp++] = value;
+                    break;
+                }
+                case OpCode.DEFINE_GLOBAL:
+                    globals.put((String) constants[readShort(code, ip)], stack[--sp]);
+                    ip += 2;
+                    break;
+                case OpCode.SET_GLOBAL: {
+                    String name = (String) constants[readShort(code, ip)];
+                    ip += 2;
+                    if (!globals.containsKey(name)) {
+                        throw new VMError("Undefined variable '" + name + "'.");
+                    }
+                    globals.put(name, stack[sp - 1]);
+                    break;
+                }
+                case OpCode.GET_UPVALUE: {
+                    Upvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+                    stack[sp++] = upvalue.isOpen ? stack[upvalue.slot] : upvalue.closed;
+                    break;
+                }
+                case OpCode.SET_UPVALUE: {
+                    Upvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+                    if (upvalue.isOpen) {
+                        stack[upvalue.slot] = stack[sp - 1];
+                    } else {
+                        upvalue.closed = stack[sp - 1];
+                    }
+                    break;
+                }
+
+                //---------- properties ---------//
+                case OpCode.GET_PROPERTY: {
+                    String name = (String) constants[readShort(code, ip)];
+                    ip += 2;
+                    Object object = stack[sp - 1];
+                    if (!(object instanceof Instance)) {
+                        throw new VMError("Only instances can have properties.");
+                    }
+                    Instance instance = (Instance) object;
+                    Object value = instance.fields.get(name);
+                    if (value == null && !instance.fields.containsKey(name)) {
+                        value = bindMethod(instance, instance.klass, name);
+                    }
+                    stack[sp - 1] = value;
+                    break;
+                }
+                case OpCode.SET_PROPERTY: {
+                    String name = (String) constants[readShort(code, ip)];
+                    ip += 2;
+                    Object object = stack[sp - 2];
+                    if (!(object instanceof Instance)) {
+                        throw new VMError("Only instances can have properties.");
+                    }
+                    Object value = stack[--sp];
+                    ((Instance) object).fields.put(name, value);
+                    stack[sp - 1] = value;
+                    break;
+                }
+                case OpCode.GET_SUPER: {
+                    String name = (String) constants[readShort(code, ip)];
+                    ip += 2;
+                    Klass superclass = (Klass) stack[--sp];
+                    stack[sp - 1] = bindMethod(stack[sp - 1], superclass, name);
+                    break;
+                }
+
+                //---------- operators ---------//
+                case OpCode.EQUAL: {
+                    Object b = stack[--sp];
+                    stack[sp - 1] = Interpreter.isEqual(stack[sp - 1], b);
+                    break;
+                }
+                case OpCode.NOT_EQUAL: {
+                    Object b = stack[--sp];
+                    stack[sp - 1] = !Interpreter.isEqual(stack[sp - 1], b);
+                    break;
+                }
+                case OpCode.GREATER: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    checkNumberOperands(a, b);
+                    stack[sp - 1] = (double) a > (double) b;
+                    break;
+                }
+                case OpCode.GREATER_EQUAL: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    checkNumberOperands(a, b);
+                    stack[sp - 1] = (double) a >= (double) b;
+                    break;
+                }
+                case OpCode.LESS: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    checkNumberOperands(a, b);
+                    stack[sp - 1] = (double) a < (double) b;
+                    break;
+                }
+                case OpCode.LESS_EQUAL: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    checkNumberOperands(a, b);
+                    stack[sp - 1] = (double) a <= (double) b;
+                    break;
+                }
+                case OpCode.ADD: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    if (a instanceof Double && b instanceof Double) {
+                        stack[sp - 1] = DoubleCache.valueOf((double) a + (double) b);
+                    } else if (Rope.isString(a) && Rope.isString(b)) {
+                        stack[sp - 1] = Rope.concat(a, b);
+                    } else {
+                        throw new VMError("Operands must be either numbers or strings.");
+                    }
+                    break;
+                }
+                case OpCode.SUBTRACT: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    checkNumberOperands(a, b);
+                    stack[sp - 1] = DoubleCache.valueOf((double) a - (double) b);
+                    break;
+                }
+                case OpCode.MULTIPLY: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    checkNumberOperands(a, b);
+                    stack[sp - 1] = DoubleCache.valueOf((double) a * (double) b);
+                    break;
+                }
+                case OpCode.DIVIDE: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    checkNumberOperands(a, b);
+                    stack[sp - 1] = DoubleCache.valueOf((double) a / (double) b);
+                    break;
+                }
+                case OpCode.NOT:
+                    stack[sp - 1] = !Interpreter.isTruthy(stack[sp - 1]);
+                    break;
+                case OpCode.NEGATE: {
+                    Object a = stack[sp - 1];
+                    if (!(a instanceof Double)) {
+                        throw new VMError("Operand must be a number.");
+                    }
+                    stack[sp - 1] = DoubleCache.valueOf(-(double) a);
+                    break;
+                }
+
+                case OpCode.PRINT:
+                    lox.out.println(Interpreter.stringify(stack[--sp]));
+                    break;
+
+                //---------- control flow ---------//
+                case OpCode.JUMP:
+                    ip += readShort(code, ip) + 2;
+                    break;
+                case OpCode.JUMP_IF_FALSE:
+                    ip += Interpreter.isTruthy(stack[sp - 1]) ? 2 : readShort(code, ip) + 2;
+                    break;
+                case OpCode.JUMP_IF_TRUE:
+                    ip += Interpreter.isTruthy(stack[sp - 1]) ? readShort(code, ip) + 2 : 2;
+                    break;
+                case OpCode.LOOP:
+                    ip -= readShort(code, ip) - 2;
+                    break;
+
+                //---------- functions and classes ---------//
+                case OpCode.CALL:
+                case OpCode.INVOKE:
+                case OpCode.SUPER_INVOKE: {
+                    byte op = code[ip - 1];
+                    String name = null;
+                    if (op != OpCode.CALL) {
+                        name = (String) constants[readShort(code, ip)];
+                        ip += 2;
+                    }
+                    int argCount = code[ip++] & 0xff;
+
+                    // save the caller's state, the callee may push a new frame
+                    frame.ip = ip;
+                    this.sp = sp;
+                    if (op == OpCode.CALL) {
+                        callValue(stack[sp - argCount - 1], argCount);
+                    } else if (op == OpCode.INVOKE) {
+                        invoke(name, argCount);
+                    } else {
+                        Klass superclass = (Klass) stack[--this.sp];
+                        invokeFromClass(superclass, name, argCount);
+                    }
+
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    stack = this.stack;
+                    ip = frame.ip;
+                    base = frame.base;
+                    sp = this.sp;
+                    break;
+                }
+                case OpCode.CLOSURE: {
+                    Function function = (Function) constants[readShort(code, ip)];
+                    ip += 2;
+                    Closure closure = new Closure(function);
+                    for (int i = 0; i < closure.upvalues.length; i++) {
+                        boolean isLocal = code[ip++] == 1;
+                        int index = code[ip++] & 0xff;
+                        closure.upvalues[i] = isLocal
+                                    ? captureUpvalue(base + index)
+                                    : frame.closure.upvalues[index];
+                    }
+                    stack[sp++] = closure;
+                    break;
+                }
+                case OpCode.CLOSE_UPVALUE:
+                    closeUpvalues(sp - 1);
+                    sp--;
+                    break;
+                case OpCode.RETURN: {
+                    Object result = stack[--sp];
+                    closeUpvalues(base);
+                    frameCount--;
+                    if (frameCount == 0) {
+                        this.sp = 0;
+                        return;
+                    }
+
+                    // discard the callee's frame, including the callee itself
+                    Arrays.fill(stack, base, sp, null);
+                    sp = base;
+                    stack[sp++] = result;
+
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    ip = frame.ip;
+                    base = frame.base;
+                    break;
+                }
+                case OpCode.CLASS:
+                    stack[sp++] = new Klass((String) constants[readShort(code, ip)]);
+                    ip += 2;
+                    break;
+                case OpCode.INHERIT: {
+                    Object superclass = stack[sp - 2];
+                    if (!(superclass instanceof Klass)) {
+                        throw new VMError("Superclass must be another class.");
+                    }
+                    Klass subclass = (Klass) stack[--sp];
+                    // methods are copied down, so lookups never need to walk the hierarchy
+                    subclass.methods.putAll(((Klass) superclass).methods);
+                    subclass.initializer = ((Klass) superclass).initializer;
+                    break;
+                }
+                case OpCode.METHOD: {
+                    String name = (String) constants[readShort(code, ip)];
+                    ip += 2;
+                    Closure method = (Closure) stack[--sp];
+                    Klass klass = (Klass) stack[sp - 1];
+                    klass.methods.put(name, method);
+                    if (name.equals(LoxClass.INIT_KEYWORD)) {
+                        klass.initializer = method;
+                    }
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Unknown opcode " + code[ip - 1]);
+                }
+            }
+        } catch (VMError error) {
+            // calls only push a frame once they can no longer fail, so the failing
+            // instruction always belongs to the current frame
+            int line = frame.closure.function.chunk.lines[ip - 1];
+            resetStack();
+            lox.runtimeError(error.getMessage(), line);
+        }
+    }
+
+    // ------------- START CALL HELPERS ------------- //
+    private void callValue(Object callee, int argCount) {
+        if (callee instanceof Closure) {
+            call((Closure) callee, argCount);
+        } else if (callee instanceof BoundMethod) {
+            BoundMethod bound = (BoundMethod) callee;
+            // the receiver takes the callee's slot, where methods expect 'this'
+            stack[sp - argCount - 1] = bound.receiver;
+            call(bound.method, argCount);
+        } else if (callee instanceof Klass) {
+            Klass klass = (Klass) callee;
+            stack[sp - argCount - 1] = new Instance(klass);
+            if (klass.initializer != null) {
+                call(klass.initializer, argCount);
+            } else if (argCount != 0) {
+                throw new VMError("Expected 0 arguments but got " + argCount + ".");
+            }
+        } else if (callee instanceof Native) {
+            Native function = (Native) callee;
+            checkArity(function.arity, argCount);
+            Object result = function.call(stack, sp - argCount);
+            sp -= argCount;
+            stack[sp - 1] = result;
+        } else {
+            throw new VMError("Only functions and classes can be called.");
+        }
+    }
+
+    private void invoke(String name, int argCount) {
+        Object receiver = stack[sp - argCount - 1];
+        if (!(receiver instanceof Instance)) {
+            throw new VMError("Only instances can have properties.");
+        }
+
+        Instance instance = (Instance) receiver;
+        // a field holding a function shadows any method of the same name
+        Object field = instance.fields.get(name);
+        if (field != null || instance.fields.containsKey(name)) {
+            stack[sp - argCount - 1] = field;
+            callValue(field, argCount);
+            return;
+        }
+
+        invokeFromClass(instance.klass, name, argCount);
+    }
+
+    private void invokeFromClass(Klass klass, String name, int argCount) {
+        Closure method = klass.methods.get(name);
+        if (method == null) {
+            throw new VMError("Undefined property: " + name + ".");
+        }
+        call(method, argCount);
+    }
+
+    private void call(Closure closure, int argCount) {
+        Function function = closure.function;
+        checkArity(function.arity, argCount);
+        if (frameCount == FRAMES_MAX) {
+            throw new VMError("Stack overflow.");
+        }
+
+        int base = sp - argCount - 1;
+        if (base + function.maxStack > stack.length) {
+            stack = Arrays.copyOf(stack, Math.max(stack.length * 2, base + function.maxStack));
+        }
+        pushFrame(closure, base);
+    }
+
+    private void pushFrame(Closure closure, int base) {
+        if (frameCount == frames.length) {
+            frames = Arrays.copyOf(frames, frameCount * 2);
+        }
+        CallFrame frame = frames[frameCount];
+        if (frame == null) {
+            frame = new CallFrame();
+            frames[frameCount] = frame;
+        }
+        frameCount++;
+
+        frame.closure = closure;
+        frame.ip = 0;
+        frame.base = base;
+    }
+
+    private void checkArity(int arity, int argCount) {
+        if (argCount != arity) {
+            throw new VMError("Expected " + arity + " arguments but got " + argCount + ".");
+        }
+    }
+
+    private BoundMethod bindMethod(Object receiver, Klass klass, String name) {
+        Closure method = klass.methods.get(name);
+        if (method == null) {
+            throw new VMError("Undefined property: " + name + ".");
+        }
+        return new BoundMethod(receiver, method);
+    }
+    // ------------- END CALL HELPERS ------------- //
+
+    // ------------- START UPVALUE HELPERS ------------- //
+    private Upvalue captureUpvalue(int slot) {
+        Upvalue previous = null;
+        Upvalue upvalue = openUpvalues;
+        while (upvalue != null && upvalue.slot > slot) {
+            previous = upvalue;
+            upvalue = upvalue.next;
+        }
+
+        // reuse the upvalue if another closure already captured this slot
+        if (upvalue != null && upvalue.slot == slot) {
+            return upvalue;
+        }
+
+        Upvalue created = new Upvalue(slot);
+        created.next = upvalue;
+        if (previous == null) {
+            openUpvalues = created;
+        } else {
+            previous.next = created;
+        }
+        return created;
+    }
+
+    /** Moves every captured variable at or above the given slot off the stack **/
+    private void closeUpvalues(int lastSlot) {
+        while (openUpvalues != null && openUpvalues.slot >= lastSlot) {
+            Upvalue upvalue = openUpvalues;
+            upvalue.closed = stack[upvalue.slot];
+            upvalue.isOpen = false;
+            openUpvalues = upvalue.next;
+        }
+    }
+    // ------------- END UPVALUE HELPERS ------------- //
+
+    // ------------- START UTILS ------------- //
+    private static int readShort(byte[] code, int ip) {
+        return ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+    }
+
+    private static void checkNumberOperands(Object a, Object b) {
+        if (a instanceof Double && b instanceof Double) return;
+        throw new VMError("Operands must be a number.");
+    }
+
+    private void resetStack() {
+        Arrays.fill(stack, null);
+        sp = 0;
+        frameCount = 0;
+        openUpvalues = null;
+    }
+    // ------------- END UTILS ------------- //
+}
@@ -8,28 +8,28 @@ import java.util.List;
 
 public class GenerateAST {
     public static final List<String> EXPR_AST_TYPES = Arrays.asList(
-        "Binary: Expr left, Token operator, Expr right",
-        "Call: Expr callee, List<Expr> arguments, Token paren",
-        "Get: Expr object, Token name",
+        "Binary: Expr left, Token operator, Expr right | BinaryNode node = BinaryNode.UNINITIALIZED, boolean numeric",
+        "Call: Expr callee, List<Expr> arguments, Token paren | LoxCallable checkedCallee",
+        "Get: Expr object, Token name | InlineCache cache = new InlineCache()",
         "Set: Expr object, Token name, Expr value",
-        "Super: Token keyword, Token method",
-        "This: Token keyword",
+        "Super: Token keyword, Token method | int depth = -1, int thisDepth = -1, int thisSlot, InlineCache cache = new InlineCache()",
+        "This: Token keyword | int depth = -1, int slot",
         "Grouping: Expr expression",
         "Literal: Object value",
         "Unary: Token operator, Expr right",
-        "Variable: Token name",
-        "Assign: Token name, Expr value",
+        "Variable: Token name | int depth = -1, int slot, Global global",
+        "Assign: Token name, Expr value | int depth = -1, int slot, Global global",
         "Logical: Expr left, Token operator, Expr right"
     );
 
     public static final List<String> STMT_AST_TYPES = Arrays.asList(
         "Expression: Expr expression",
         "Print: Expr expression",
-        "Var: Token name, Expr initializer",
-        "Return: Token keyword, Expr value",
-        "Function: Token name, List<Token> params, List<Stmt> body",
-        "Class: Token name, Expr.Variable superclass, List<Stmt.Function> methods",
-        "Block: List<Stmt> statements",
+        "Var: Token name, Expr initializer | int slot = -1, boolean captured",
+        "Return: Token keyword, Expr value | boolean tailCall",
+        "Function: Token name, List<Token> params, List<Stmt> body | int slot = -1, boolean captured, int slotCount, int frameSize, int[] paramSlots, int callCount, JitCode jitCode",
+        "Class: Token name, Expr.Variable superclass, List<Stmt.Function> methods | int slot = -1, boolean captured",
+        "Block: List<Stmt> statements | int slotCount, int frameSize",
         "If: Expr condition, Stmt thenBranch, Stmt elseBranch",
         "While: Expr condition, Stmt body"
     );
@@ -84,11 +84,24 @@ public class GenerateAST {
     private static void defineType(PrintWriter writer, String baseName, String className, String fields) {
         writer.println("    static class " + className + " extends " + baseName + " {");
 
+        // fields after a '|' are filled in by later passes (e.g. the resolver), so they are
+        // neither final nor part of the constructor
+        String annotations = null;
+        if (fields.contains("|")) {
+            annotations = fields.split("\\|")[1].trim();
+            fields = fields.split("\\|")[0].trim();
+        }
+
         // declare fields
         String[] fieldArray = fields.split(", ");
         for (String field : fieldArray) {
             writer.println("        final " + field.trim() + ";");
         }
+        if (annotations != null) {
+            for (String annotation : annotations.split(", ")) {
+                writer.println("        " + annotation.trim() + ";");
+            }
+        }
         writer.println();
 
         // write the constructor
@@ -0,0 +1,26 @@
+#!/bin/sh
+# Records tail_call.lox with JDK Flight Recorder, with every lox.Call event kept, and checks that
+# each of the two functions got an event under its own name. Takes the directory jlox was
+# compiled to; test/run.sh passes it.
+
+classes=$1
+dir=$(dirname "$0")
+work=$(mktemp -d)
+trap 'rm -rf "$work"' EXIT
+
+cat > "$work/calls.jfc" <<'JFC'
+<?xml version="1.0" encoding="UTF-8"?>
+<configuration version="2.0">
+  <event name="lox.Call"><setting name="enabled">true</setting><setting name="threshold">0 ms</setting></event>
+</configuration>
+JFC
+
+java -XX:StartFlightRecording=filename="$work/calls.jfr",settings="$work/calls.jfc" \
+    -cp "$classes" lox.Lox "$dir/tail_call.lox" > /dev/null 2>&1
+actual=$(jfr print --events lox.Call "$work/calls.jfr" | sed -n 's/.*function = "\(.*\)"/\1/p' | sort)
+expected=$(printf 'callee\ncaller')
+if [ "$actual" != "$expected" ]; then
+    echo "FAIL $dir/tail_call.lox lox.Call events"
+    echo "$actual" | sed 's/^/    /'
+    exit 1
+fi
@@ -0,0 +1,41 @@
+#!/bin/sh
+# Runs every script under test/ in each engine and mode, and compares what it prints with the
+# "// expect: " comments in it, in order. Prints the scripts that differ and exits with 1 if any do.
+# Scripts with a "// tree-walker only" comment, e.g. for tail calls deeper than the VM's frame
+# limit, skip --engine=vm.
+#
+#   test/run.sh            # everything
+#   test/run.sh tail_calls # one directory
+
+cd "$(dirname "$0")/.." || exit 1
+
+classes=$(mktemp -d)
+cache=$(mktemp -d)
+trap 'rm -rf "$classes" "$cache"' EXIT
+javac -d "$classes" src/lox/*.java || exit 1
+
+# a threshold of 1 has the jit compile every function that it can on its first call
+modes="--engine=tree --jit --specialize --no-optimize --stream --cache=$cache --engine=vm"
+failed=0
+for script in $(find "test/${1:-}" -name '*.lox' | sort); do
+    expected=$(sed -n 's/.*\/\/ expect: //p' "$script")
+    for mode in $modes; do
+        if [ "$mode" = --engine=vm ] && grep -q '// tree-walker only' "$script"; then
+            continue
+        fi
+        actual=$(java -Dlox.jit.threshold=1 -cp "$classes" lox.Lox "$mode" "$script" 2>&1)
+        if [ "$actual" != "$expected" ]; then
+            echo "FAIL $script $mode"
+            echo "$actual" | head -5 | sed 's/^/    /'
+            failed=1
+        fi
+    done
+done
+
+# the events jlox records with JFR, which need a recording to check
+if [ -z "${1:-}" ] || [ "$1" = jfr ]; then
+    test/jfr/check.sh "$classes" || failed=1
+fi
+
+[ $failed = 0 ] && echo "all passed"
+exit $failed